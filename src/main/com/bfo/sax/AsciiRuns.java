@@ -0,0 +1,41 @@
+package com.bfo.sax;
+
+/**
+ * Copies long runs of plain ASCII bytes for {@link CPReader.Delimiters#copyASCII}
+ * more quickly than its word-at-a-time scan, where the platform allows. This is
+ * the version for Java 8 to 16, which doesn't; the Java 17 version in src/main17
+ * uses the Vector API if the jdk.incubator.vector module has been added.
+ */
+final class AsciiRuns {
+
+    /**
+     * Whether {@link #copy} can be used. Set in a static block rather than
+     * as a constant, so the versioned value is read rather than this one.
+     */
+    static final boolean ENABLED;
+    static {
+        ENABLED = false;
+    }
+
+    private AsciiRuns() {
+    }
+
+    /**
+     * Copy bytes to chars until the first one that is non-ASCII, a control, DEL or
+     * one of the delimiters, or until too few bytes remain to check in one go.
+     * @param buf the bytes
+     * @param pos the index of the first byte to copy
+     * @param len the index after the last byte available
+     * @param out the array to copy to
+     * @param o the index in out to copy to
+     * @param end the index after the last char available in out
+     * @param d0 a printable delimiter, or 0
+     * @param d1 a printable delimiter, or 0
+     * @param d2 a printable delimiter, or 0
+     * @return the number of bytes copied
+     */
+    static int copy(byte[] buf, int pos, int len, char[] out, int o, int end, byte d0, byte d1, byte d2) {
+        return 0;
+    }
+
+}
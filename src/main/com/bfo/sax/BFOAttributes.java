@@ -3,45 +3,278 @@ package com.bfo.sax;
 import java.util.*;
 import org.xml.sax.*;
 
+/**
+ * The Attributes passed to startElement, in parallel arrays. When the Queue allows
+ * it, one instance is cleared and reused for every element.
+ *
+ * While reading a start tag, attributes are added with just their qName and value.
+ * The URI and localName are set once all the namespace declarations on the element
+ * are known, and any declarations that are not to be reported are then removed.
+ * Values may be added as a range of the parser's buffer, in which case the String
+ * is only created when it's first requested. The parser must leave that part of the
+ * buffer untouched while these attributes can be read: until startElement returns
+ * if the Queue is buffer-safe, and for good otherwise, as it does for characters.
+ *
+ * Elements with more than a few attributes are indexed by qName, and by URI and
+ * localName, so the parser can find duplicates without comparing every pair. The
+ * indexes are kept up to date as attributes are added and named, and their tables
+ * are reused by the next element if it needs about the same size.
+ */
 class BFOAttributes implements Attributes {
-    private static final int NUMFIELDS = 6;
-    private static final String SPECIFIED = "specified";
-    List<String> l = new ArrayList<String>();       // uri, lname, qname, type, value
-    void add(String uri, String localName, String qName, String type, String value, boolean specified) {
-        l.add(uri);
-        l.add(localName);
-        l.add(qName);
-        l.add(type);
-        l.add(value);
-        l.add(specified ? SPECIFIED : null);
+
+    private static final int INDEXMIN = 8;      // index lookups once there are more attributes than this
+
+    private int length;
+    private String[] uri, localName, qName, type, value;
+    private boolean[] specified;
+    private int[] valueStart, valueEnd;         // the range of buf holding any value that's null
+    private char[] buf;
+    private int[] qNameIndex, nsIndex;          // open-addressed, holding index + 1
+    private int qNameCount, nsCount;            // the number of attributes in each index
+
+    BFOAttributes() {
+        uri = new String[INDEXMIN];
+        localName = new String[INDEXMIN];
+        qName = new String[INDEXMIN];
+        type = new String[INDEXMIN];
+        value = new String[INDEXMIN];
+        specified = new boolean[INDEXMIN];
+        valueStart = new int[INDEXMIN];
+        valueEnd = new int[INDEXMIN];
+    }
+
+    /**
+     * Remove all attributes, so this object can be reused for the next element
+     */
+    void clear() {
+        Arrays.fill(uri, 0, length, null);
+        Arrays.fill(localName, 0, length, null);
+        Arrays.fill(qName, 0, length, null);
+        Arrays.fill(value, 0, length, null);
+        length = 0;
+        qNameCount = nsCount = 0;
+        buf = null;
+    }
+
+    /**
+     * Add an attribute with only its qName and value. Its URI and localName are
+     * empty, as they should be if namespaces are not being processed
+     * @return the index of the new attribute
+     */
+    int add(String qName, String value, boolean specified) {
+        if (length == this.qName.length) {
+            final int size = length * 2;
+            uri = Arrays.copyOf(uri, size);
+            localName = Arrays.copyOf(localName, size);
+            this.qName = Arrays.copyOf(this.qName, size);
+            type = Arrays.copyOf(type, size);
+            this.value = Arrays.copyOf(this.value, size);
+            this.specified = Arrays.copyOf(this.specified, size);
+            valueStart = Arrays.copyOf(valueStart, size);
+            valueEnd = Arrays.copyOf(valueEnd, size);
+        }
+        this.uri[length] = "";
+        this.localName[length] = "";
+        this.qName[length] = qName;
+        this.value[length] = value;
+        this.type[length] = "CDATA";
+        this.specified[length] = specified;
+        final int index = length++;
+        if (qNameCount == index && index > INDEXMIN) {
+            if (length * 2 > qNameIndex.length) {
+                qNameIndex = index(qNameIndex, false, length);
+            } else {
+                insert(qNameIndex, qName, index);
+            }
+            qNameCount = length;
+        }
+        nsCount = 0;
+        return index;
+    }
+
+    /**
+     * Add an attribute with only its qName, and a value that's in the buffer
+     * passed to {@link #setBuffer}
+     * @param start the start of the value in the buffer
+     * @param end the end of the value in the buffer
+     * @return the index of the new attribute
+     */
+    int add(String qName, int start, int end, boolean specified) {
+        final int index = add(qName, null, specified);
+        valueStart[index] = start;
+        valueEnd[index] = end;
+        return index;
+    }
+
+    /**
+     * Set the buffer holding the values that were added as a range. It must be
+     * called before any values are read, as the parser's buffer may have grown
+     */
+    void setBuffer(char[] buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * Set the URI and localName of an attribute. The attributes should be named
+     * in order, so each can be checked against those before it in constant time
+     * @return the index of an earlier attribute with the same URI and localName, or -1 if there isn't one
+     */
+    int setName(int index, String uri, String localName) {
+        this.uri[index] = uri;
+        this.localName[index] = localName;
+        if (length <= INDEXMIN) {
+            for (int i=0;i<index;i++) {
+                if (this.localName[i].equals(localName) && this.uri[i].equals(uri)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        if (index == 0 || nsCount != index) {
+            nsIndex = index(nsIndex, true, index);
+        }
+        final int[] nsIndex = this.nsIndex;
+        final int mask = nsIndex.length - 1;
+        int dup = -1, i, j;
+        for (j=hash(localName) & mask;(i=nsIndex[j]) != 0;j=(j+1) & mask) {
+            if (dup < 0 && this.localName[i - 1].equals(localName) && this.uri[i - 1].equals(uri)) {
+                dup = i - 1;
+            }
+        }
+        nsIndex[j] = index + 1;
+        nsCount = index + 1;
+        return dup;
+    }
+
+    void setValue(int index, String value) {
+        this.value[index] = value;
+    }
+
+    /**
+     * Remove the attributes whose qName has been set to null by {@link #remove}, keeping the order of the rest
+     */
+    void compact() {
+        int j = 0;
+        for (int i=0;i<length;i++) {
+            if (qName[i] != null) {
+                if (i != j) {
+                    uri[j] = uri[i];
+                    localName[j] = localName[i];
+                    qName[j] = qName[i];
+                    type[j] = type[i];
+                    value[j] = value[i];
+                    specified[j] = specified[i];
+                    valueStart[j] = valueStart[i];
+                    valueEnd[j] = valueEnd[i];
+                }
+                j++;
+            }
+        }
+        Arrays.fill(uri, j, length, null);
+        Arrays.fill(localName, j, length, null);
+        Arrays.fill(qName, j, length, null);
+        Arrays.fill(value, j, length, null);
+        length = j;
+        qNameCount = nsCount = 0;
+    }
+
+    /**
+     * Mark an attribute to be removed by {@link #compact}
+     */
+    void remove(int index) {
+        qName[index] = null;
+        qNameCount = nsCount = 0;
+    }
+
+    private static int hash(String s) {
+        final int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Build an index of the first attributes from the qNames, or from the URIs and localNames.
+     * The table is sized for the current length, so it's at most half full
+     * @param index the table from a previous element, to reuse if it's big enough but not much too big, or null
+     * @param ns whether to index the URIs and localNames rather than the qNames
+     * @param count the number of attributes to index
+     */
+    private int[] index(int[] index, boolean ns, int count) {
+        final int size = Integer.highestOneBit(length) * 4;
+        if (index != null && index.length >= size && index.length <= size * 4) {
+            Arrays.fill(index, 0);
+        } else {
+            index = new int[size];
+        }
+        for (int i=0;i<count;i++) {
+            insert(index, ns ? localName[i] : qName[i], i);
+        }
+        return index;
+    }
+
+    private static void insert(int[] index, String key, int i) {
+        final int mask = index.length - 1;
+        int j = hash(key) & mask;
+        while (index[j] != 0) {
+            j = (j+1) & mask;
+        }
+        index[j] = i + 1;
     }
+
     @Override public int getIndex(String qName) {
-        for (int i=0;i<l.size();i+=NUMFIELDS) {
-            if (l.get(i + 2).equals(qName)) {
-                return i / NUMFIELDS;
+        if (length > INDEXMIN && qName != null) {
+            if (qNameCount != length) {
+                qNameIndex = index(qNameIndex, false, length);
+                qNameCount = length;
+            }
+            final int mask = qNameIndex.length - 1;
+            int i;
+            for (int j=hash(qName) & mask;(i=qNameIndex[j]) != 0;j=(j+1) & mask) {
+                if (this.qName[i - 1].equals(qName)) {
+                    return i - 1;
+                }
+            }
+            return -1;
+        }
+        for (int i=0;i<length;i++) {
+            if (this.qName[i].equals(qName)) {
+                return i;
             }
         }
         return -1;
     }
     @Override public int getIndex(String uri, String localName) {
-        for (int i=0;i<l.size();i+=NUMFIELDS) {
-            if (l.get(i + 1).equals(localName) && l.get(i).equals(uri)) {
-                return i / NUMFIELDS;
+        if (length > INDEXMIN && localName != null) {
+            if (nsCount != length) {
+                nsIndex = index(nsIndex, true, length);
+                nsCount = length;
+            }
+            final int mask = nsIndex.length - 1;
+            int i;
+            for (int j=hash(localName) & mask;(i=nsIndex[j]) != 0;j=(j+1) & mask) {
+                if (this.localName[i - 1].equals(localName) && this.uri[i - 1].equals(uri)) {
+                    return i - 1;
+                }
+            }
+            return -1;
+        }
+        for (int i=0;i<length;i++) {
+            if (this.localName[i].equals(localName) && this.uri[i].equals(uri)) {
+                return i;
             }
         }
         return -1;
     }
     @Override public int getLength() {
-        return l.size() / NUMFIELDS;
+        return length;
     }
     @Override public String getLocalName(int index) {
-        return index < 0 || index >= getLength() ? null : l.get(index * NUMFIELDS + 1);
+        return index < 0 || index >= length ? null : localName[index];
     }
     @Override public String getQName(int index) {
-        return index < 0 || index >= getLength() ? null : l.get(index * NUMFIELDS + 2);
+        return index < 0 || index >= length ? null : qName[index];
     }
     @Override public String getType(int index) {
-        return index < 0 || index >= getLength() ? null : l.get(index * 4 + 3);
+        return index < 0 || index >= length ? null : type[index];
     }
     @Override public String getType(String qName) {
         int v = getIndex(qName);
@@ -52,13 +285,20 @@ class BFOAttributes implements Attributes {
         return v < 0 ? null : getType(v);
     }
     @Override public String getURI(int index) {
-        return index < 0 || index >= getLength() ? null : l.get(index * NUMFIELDS);
+        return index < 0 || index >= length ? null : uri[index];
     }
     @Override public String getValue(int index) {
-        return index < 0 || index >= getLength() ? null : l.get(index * NUMFIELDS + 4);
+        if (index < 0 || index >= length) {
+            return null;
+        }
+        String v = value[index];
+        if (v == null) {
+            v = value[index] = new String(buf, valueStart[index], valueEnd[index] - valueStart[index]);
+        }
+        return v;
     }
     public boolean isSpecified(int index) {
-        return index < 0 || index >= getLength() ? null : l.get(index * NUMFIELDS + 5) == SPECIFIED;
+        return index >= 0 && index < length && specified[index];
     }
     @Override public String getValue(String qName) {
         int v = getIndex(qName);
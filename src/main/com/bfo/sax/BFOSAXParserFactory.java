@@ -8,6 +8,9 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
 
 /**
  * <p>
@@ -20,6 +23,7 @@ public class BFOSAXParserFactory extends SAXParserFactory {
     private final BFOXMLReader FEATUREHOLDER = new BFOXMLReader(this);
     boolean xercescompat = true;
     private Cache cache = new Cache(this);
+    final SymbolTable symbols = new SymbolTable();
     private Map<String,String> publicIdMap = Collections.<String,String>synchronizedMap(new HashMap<String,String>());
     int dtdCacheSize = 50, entityCacheSize = 50;
     ExecutorService executorService;
@@ -29,6 +33,33 @@ public class BFOSAXParserFactory extends SAXParserFactory {
      */
     public static final String FEATURE_THREADS = "http://bfo.com/sax/features/threads";
 
+    /**
+     * This feature determines whether the document is read and decoded in a further thread, ahead of the parsing thread.
+     * This may help large documents in encodings that are slow to decode when a spare processor is available.
+     * Character offsets are not reported in this mode. The default is false
+     */
+    public static final String FEATURE_DECODE_THREAD = "http://bfo.com/sax/features/decode-thread";
+
+    /**
+     * This feature determines whether gzip-compressed input is recognised and inflated as it's read.
+     * This applies to the document and to any external DTD or entity. The default is false
+     */
+    public static final String FEATURE_GZIP = "http://bfo.com/sax/features/gzip";
+
+    /**
+     * This feature determines whether element and attribute names are looked up in a table shared
+     * by all parsers from this factory, so a name seen before doesn't create a new String. The table is never
+     * emptied, and holds up to 8192 names: each parse adds at most 1024 to it, and keeps any others in a
+     * table of its own until it ends. The default is true
+     */
+    public static final String FEATURE_SYMBOL_TABLE = "http://bfo.com/sax/features/symbol-table";
+
+    /**
+     * This feature determines whether attribute values are left in the parser's buffer until they're
+     * requested, so values that are never read don't create a String. The default is true
+     */
+    public static final String FEATURE_LAZY_ATTRIBUTE_VALUES = "http://bfo.com/sax/features/lazy-attribute-values";
+
     /**
      * This feature determines whether DTDs and other external entities are cached, based on their checksum if necessary. The default is true
      */
@@ -65,6 +96,10 @@ public class BFOSAXParserFactory extends SAXParserFactory {
         l.add(FEATURE_CACHE);
         l.add(FEATURE_CACHE_PUBLICID);
         l.add(FEATURE_THREADS);
+        l.add(FEATURE_DECODE_THREAD);
+        l.add(FEATURE_GZIP);
+        l.add(FEATURE_SYMBOL_TABLE);
+        l.add(FEATURE_LAZY_ATTRIBUTE_VALUES);
         l.add(XMLConstants.FEATURE_SECURE_PROCESSING);
         return Collections.<String>unmodifiableList(l);
     }
@@ -153,6 +188,7 @@ public class BFOSAXParserFactory extends SAXParserFactory {
                 final URL furl = new URI(resolvedSystemId).toURL();
                 String scheme = furl.getProtocol();
                 String urn = null;
+                File file = null;
 
                 if (entity) {
                     // Check if we're allowed to access this URL
@@ -187,7 +223,7 @@ public class BFOSAXParserFactory extends SAXParserFactory {
                 if (scheme.equals("file")) {
                     // File URLs are permanently identified by their URL and their last modified time
                     try {
-                        final File file = new File(furl.toURI());
+                        file = new File(furl.toURI());
                         urn = furl + "#lastModified=" + file.lastModified();
                     } catch (Exception e) {
                         throw new SAXException(e);
@@ -202,11 +238,16 @@ public class BFOSAXParserFactory extends SAXParserFactory {
 
                 // New InputSource that opens the requested stream on demand,
                 // because we're hoping this will not be required due to caching
+                final File ffile = file != null && file.isFile() ? file : null;
                 InputSourceURN source = new InputSourceURN() {
                     @Override public InputStream getByteStream() {
                         try {
                             InputStream in = super.getByteStream();
-                            if (in == null) {
+                            if (in == null && ffile != null) {
+                                // Local files are read directly, mapped into memory if they're large
+                                in = MappedInputStream.open(ffile);
+                                setByteStream(in);
+                            } else if (in == null) {
                                 URL url = furl;
                                 URLConnection con = url.openConnection();
                                 if (con instanceof HttpURLConnection) {
@@ -346,7 +387,8 @@ public class BFOSAXParserFactory extends SAXParserFactory {
 
     /**
      * Set the {@link ExecutorService} which XML parsing threads should run,
-     * or <code>null</code> to simply create Threads as needed
+     * or <code>null</code> to simply create Threads as needed. The threads that
+     * read ahead or decode the input, if those are on, are always Threads of their own
      * @param service the ExecutorService
      */
     public void setExecutorService(ExecutorService service) {
@@ -369,4 +411,98 @@ public class BFOSAXParserFactory extends SAXParserFactory {
         this.entityCacheSize = Math.max(5, size);
     }
 
+    /**
+     * Return an InputSource that reads from the specified ByteBuffer, from its
+     * position to its limit. The position of the buffer is not changed. UTF-8
+     * and single-byte encoded content in a buffer backed by an array is decoded directly
+     * from that array without being copied, so the buffer must not be modified
+     * while it is being parsed.
+     * @param buf the ByteBuffer
+     * @return an InputSource for use with this factory's parsers
+     */
+    public static InputSource createInputSource(ByteBuffer buf) {
+        if (buf == null) {
+            throw new IllegalArgumentException("ByteBuffer is null");
+        }
+        return new InputSource(new ByteBufferInputStream(buf));
+    }
+
+    /**
+     * Return an InputSource that reads from the specified range of a byte array.
+     * As for {@link #createInputSource(ByteBuffer)}, the array is read in place
+     * so must not be modified while it is being parsed.
+     * @param buf the byte array
+     * @param off the offset of the first byte to read
+     * @param len the number of bytes to read
+     * @return an InputSource for use with this factory's parsers
+     */
+    public static InputSource createInputSource(byte[] buf, int off, int len) {
+        if (buf == null) {
+            throw new IllegalArgumentException("Array is null");
+        }
+        return createInputSource(ByteBuffer.wrap(buf, off, len));
+    }
+
+    /**
+     * Return an InputSource that reads from the specified range of a char array.
+     * The array is read in place rather than being copied to the parser's buffer,
+     * so must not be modified while it is being parsed.
+     * @param buf the char array
+     * @param off the offset of the first char to read
+     * @param len the number of chars to read
+     * @return an InputSource for use with this factory's parsers
+     */
+    public static InputSource createInputSource(char[] buf, int off, int len) {
+        if (buf == null) {
+            throw new IllegalArgumentException("Array is null");
+        }
+        return new InputSource(new CharBufferReader(CharBuffer.wrap(buf, off, len)));
+    }
+
+    /**
+     * Return an InputSource that reads from the specified CharSequence. A CharBuffer
+     * backed by an array is read in place, as for {@link #createInputSource(char[],int,int)},
+     * from its position to its limit without changing its position. A String, StringBuilder
+     * or StringBuffer is copied once into an array that is read in place.
+     * @param s the CharSequence
+     * @return an InputSource for use with this factory's parsers
+     */
+    public static InputSource createInputSource(CharSequence s) {
+        if (s == null) {
+            throw new IllegalArgumentException("CharSequence is null");
+        }
+        CharBuffer buf;
+        if (s instanceof CharBuffer) {
+            buf = (CharBuffer)s;
+        } else if (s instanceof String) {
+            char[] c = new char[s.length()];
+            ((String)s).getChars(0, c.length, c, 0);
+            buf = CharBuffer.wrap(c);
+        } else if (s instanceof StringBuilder) {
+            char[] c = new char[s.length()];
+            ((StringBuilder)s).getChars(0, c.length, c, 0);
+            buf = CharBuffer.wrap(c);
+        } else if (s instanceof StringBuffer) {
+            char[] c = new char[s.length()];
+            ((StringBuffer)s).getChars(0, c.length, c, 0);
+            buf = CharBuffer.wrap(c);
+        } else {
+            buf = CharBuffer.wrap(s);
+        }
+        return new InputSource(new CharBufferReader(buf));
+    }
+
+    /**
+     * Return an InputSource that reads from the specified channel, which must
+     * be in blocking mode. Bytes are read from the channel directly into the parser's buffer.
+     * @param channel the channel
+     * @return an InputSource for use with this factory's parsers
+     */
+    public static InputSource createInputSource(ReadableByteChannel channel) {
+        if (channel == null) {
+            throw new IllegalArgumentException("Channel is null");
+        }
+        return new InputSource(Channels.newInputStream(channel));
+    }
+
 }
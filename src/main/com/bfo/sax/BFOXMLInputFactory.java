@@ -1,6 +1,8 @@
 package com.bfo.sax;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 import javax.xml.stream.*;
 import javax.xml.stream.*;
@@ -57,6 +59,60 @@ public class BFOXMLInputFactory extends XMLInputFactory {
         return createXMLEventReader(createXMLStreamReader(source));
     }
 
+    /**
+     * Create a new XMLEventReader reading from the specified ByteBuffer
+     * @param buf the ByteBuffer, read as described in {@link BFOSAXParserFactory#createInputSource(ByteBuffer)}
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLEventReader createXMLEventReader(ByteBuffer buf) throws XMLStreamException {
+        return createXMLEventReader(createXMLStreamReader(buf));
+    }
+
+    /**
+     * Create a new XMLEventReader reading from the specified range of a byte array
+     * @param buf the byte array, read as described in {@link BFOSAXParserFactory#createInputSource(byte[],int,int)}
+     * @param off the offset of the first byte to read
+     * @param len the number of bytes to read
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLEventReader createXMLEventReader(byte[] buf, int off, int len) throws XMLStreamException {
+        return createXMLEventReader(createXMLStreamReader(buf, off, len));
+    }
+
+    /**
+     * Create a new XMLEventReader reading from the specified range of a char array
+     * @param buf the char array, read as described in {@link BFOSAXParserFactory#createInputSource(char[],int,int)}
+     * @param off the offset of the first char to read
+     * @param len the number of chars to read
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLEventReader createXMLEventReader(char[] buf, int off, int len) throws XMLStreamException {
+        return createXMLEventReader(createXMLStreamReader(buf, off, len));
+    }
+
+    /**
+     * Create a new XMLEventReader reading from the specified CharSequence
+     * @param s the CharSequence, read as described in {@link BFOSAXParserFactory#createInputSource(CharSequence)}
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLEventReader createXMLEventReader(CharSequence s) throws XMLStreamException {
+        return createXMLEventReader(createXMLStreamReader(s));
+    }
+
+    /**
+     * Create a new XMLEventReader reading from the specified channel
+     * @param channel the channel, read as described in {@link BFOSAXParserFactory#createInputSource(ReadableByteChannel)}
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLEventReader createXMLEventReader(ReadableByteChannel channel) throws XMLStreamException {
+        return createXMLEventReader(createXMLStreamReader(channel));
+    }
+
     public XMLEventReader createXMLEventReader(XMLStreamReader reader) throws XMLStreamException {
         return new BFOXMLEventReader(this, reader);
     }
@@ -77,6 +133,60 @@ public class BFOXMLInputFactory extends XMLInputFactory {
         return createXMLStreamReader(systemId, stream, null);
     }
 
+    /**
+     * Create a new XMLStreamReader reading from the specified ByteBuffer
+     * @param buf the ByteBuffer, read as described in {@link BFOSAXParserFactory#createInputSource(ByteBuffer)}
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLStreamReader createXMLStreamReader(ByteBuffer buf) throws XMLStreamException {
+        return createXMLStreamReader(BFOSAXParserFactory.createInputSource(buf));
+    }
+
+    /**
+     * Create a new XMLStreamReader reading from the specified range of a byte array
+     * @param buf the byte array, read as described in {@link BFOSAXParserFactory#createInputSource(byte[],int,int)}
+     * @param off the offset of the first byte to read
+     * @param len the number of bytes to read
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLStreamReader createXMLStreamReader(byte[] buf, int off, int len) throws XMLStreamException {
+        return createXMLStreamReader(BFOSAXParserFactory.createInputSource(buf, off, len));
+    }
+
+    /**
+     * Create a new XMLStreamReader reading from the specified range of a char array
+     * @param buf the char array, read as described in {@link BFOSAXParserFactory#createInputSource(char[],int,int)}
+     * @param off the offset of the first char to read
+     * @param len the number of chars to read
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLStreamReader createXMLStreamReader(char[] buf, int off, int len) throws XMLStreamException {
+        return createXMLStreamReader(BFOSAXParserFactory.createInputSource(buf, off, len));
+    }
+
+    /**
+     * Create a new XMLStreamReader reading from the specified CharSequence
+     * @param s the CharSequence, read as described in {@link BFOSAXParserFactory#createInputSource(CharSequence)}
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLStreamReader createXMLStreamReader(CharSequence s) throws XMLStreamException {
+        return createXMLStreamReader(BFOSAXParserFactory.createInputSource(s));
+    }
+
+    /**
+     * Create a new XMLStreamReader reading from the specified channel
+     * @param channel the channel, read as described in {@link BFOSAXParserFactory#createInputSource(ReadableByteChannel)}
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    public XMLStreamReader createXMLStreamReader(ReadableByteChannel channel) throws XMLStreamException {
+        return createXMLStreamReader(BFOSAXParserFactory.createInputSource(channel));
+    }
+
     public XMLStreamReader createXMLStreamReader(Source source) throws XMLStreamException {
         if (source instanceof StreamSource) {
             StreamSource s = (StreamSource)source;
@@ -97,6 +207,10 @@ public class BFOXMLInputFactory extends XMLInputFactory {
         InputSource source = new InputSource(stream);
         source.setSystemId(systemId);
         source.setEncoding(encoding);
+        return createXMLStreamReader(source);
+    }
+
+    private XMLStreamReader createXMLStreamReader(InputSource source) throws XMLStreamException {
         BFOXMLReader r = null;
         try {
             BFOXMLStreamReader xmlreader = new BFOXMLStreamReader(this, properties);
@@ -12,13 +12,27 @@ import org.xml.sax.ext.*;
 
 class BFOXMLReader implements XMLReader, Locator2, Location {
 
+    // Delimiters for CPReader.readRun
+    private static final CPReader.Delimiters RUN_CONTENT = CPReader.delimiters("<&]");
+    private static final CPReader.Delimiters RUN_ATTVALUE = CPReader.delimiters("<&\t\n");
+    private static final CPReader.Delimiters RUN_ATTVALUE_QUOT = CPReader.delimiters("<&\t\n\"");
+    private static final CPReader.Delimiters RUN_ATTVALUE_APOS = CPReader.delimiters("<&\t\n'");
+    private static final CPReader.Delimiters RUN_COMMENT = CPReader.delimiters("-");
+    private static final CPReader.Delimiters RUN_CDATA = CPReader.delimiters("]");
+    private static final int MAXSYMBOLS = 1024;                 // names each parse may add to the factory's symbol table
+
     final Logger cachelog = Logger.getLogger("com.bfo.sax.Cache");
     private int c, len;
     private char[] buf;
     private CPReader curreader;
     private int inputBufferSize;
+    private int readAheadBuffers;
+    private ReadAheadInputStream readAhead;
+    private final Collection<GzipInputStream> gzipStreams = new ConcurrentLinkedQueue<GzipInputStream>();
     private boolean standalone;                                 // TODO
     private boolean featureThreads = true;
+    private boolean featureDecodeThread = false;
+    private boolean featureGzip = false;
     private boolean featureNamespaces = true;
     private boolean featureNamespacePrefixes = false;            // xerces java internal defaults to true
     private boolean featureEntityResolver2 = true;
@@ -27,6 +41,8 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
     private boolean featureExternalParameterEntities = true;
     private boolean featureSecureProcessing = false;
     private boolean featureInternStrings = false;
+    private boolean featureSymbolTable = true;
+    private boolean featureLazyAttributeValues = true;
     private boolean featureCache = true;
     private boolean featureCachePublicId = true;  // xerces does, so we do
     private boolean featureDisallowDoctype = false;
@@ -42,11 +58,18 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
     private DeclHandler declHandler;
     private DTDHandler dtdHandler;
     private ErrorHandler errorHandler;
-    private List<Context> stack = new ArrayList<Context>();
+    private Context[] stack = new Context[16];      // open elements; entries past depth are kept for reuse
+    private int depth;
+    private String[] nsPrefix = new String[16], nsURI = new String[16];   // namespace bindings in scope, innermost last
+    private int nsCount;
+    private BFOAttributes attributes;   // reused for each element, if the queue allows it
+    private long[] defaultsSeen;        // which default attributes were specified, reused for each element
     private List<Entity> entityStack = new ArrayList<Entity>();
     private BFOSAXParserFactory factory;
     private Locale locale = Locale.getDefault();
     private Map<String,String> internMap = new HashMap<String,String>();
+    private final SymbolTable symbols = new SymbolTable();   // names this parse couldn't add to the factory's table
+    private int symbolsAdded;           // names this parse has added to the factory's table
 
     public BFOXMLReader(BFOSAXParserFactory factory) {
         if (factory == null) {
@@ -90,6 +113,14 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
            return featureDisallowDoctype;
        } else if (BFOSAXParserFactory.FEATURE_THREADS.equals(name)) {
            return featureThreads;
+       } else if (BFOSAXParserFactory.FEATURE_DECODE_THREAD.equals(name)) {
+           return featureDecodeThread;
+       } else if (BFOSAXParserFactory.FEATURE_GZIP.equals(name)) {
+           return featureGzip;
+       } else if (BFOSAXParserFactory.FEATURE_SYMBOL_TABLE.equals(name)) {
+           return featureSymbolTable;
+       } else if (BFOSAXParserFactory.FEATURE_LAZY_ATTRIBUTE_VALUES.equals(name)) {
+           return featureLazyAttributeValues;
        } else if (BFOSAXParserFactory.FEATURE_CACHE.equals(name)) {
            return featureCache;
        } else if (BFOSAXParserFactory.FEATURE_CACHE_PUBLICID.equals(name)) {
@@ -129,6 +160,14 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
            featureSecureProcessing = value;
        } else if (BFOSAXParserFactory.FEATURE_THREADS.equals(name)) {
            featureThreads = value;
+       } else if (BFOSAXParserFactory.FEATURE_DECODE_THREAD.equals(name)) {
+           featureDecodeThread = value;
+       } else if (BFOSAXParserFactory.FEATURE_GZIP.equals(name)) {
+           featureGzip = value;
+       } else if (BFOSAXParserFactory.FEATURE_SYMBOL_TABLE.equals(name)) {
+           featureSymbolTable = value;
+       } else if (BFOSAXParserFactory.FEATURE_LAZY_ATTRIBUTE_VALUES.equals(name)) {
+           featureLazyAttributeValues = value;
        } else if (BFOSAXParserFactory.FEATURE_CACHE.equals(name)) {
            featureCache = value;
        } else if (BFOSAXParserFactory.FEATURE_CACHE_PUBLICID.equals(name)) {
@@ -146,6 +185,8 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
             return curreader != null && curreader.isXML11();
         } else if ("http://apache.org/xml/properties/input-buffer-size".equals(name)) {
             return inputBufferSize;
+        } else if ("http://bfo.com/sax/properties/read-ahead".equals(name)) {
+            return readAheadBuffers;
         } else if ("http://javax.xml.XMLConstants/property/accessExternalDTD".equals(name)) {
             return externalPrefixes;
         }
@@ -172,6 +213,12 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
             } else {
                 throw new SAXNotSupportedException(name + " wrong class");
             }
+        } else if ("http://bfo.com/sax/properties/read-ahead".equals(name)) {
+            if (value instanceof Integer) {
+                readAheadBuffers = Math.max(0, ((Integer)value).intValue());
+            } else {
+                throw new SAXNotSupportedException(name + " wrong class");
+            }
         } else if ("http://javax.xml.XMLConstants/property/accessExternalDTD".equals(name)) {
             if (value == null) {
                 value = "";
@@ -301,6 +348,16 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                 }
             };
         }
+        if (readAheadBuffers > 0 && in.getCharacterStream() == null && !(in.getByteStream() instanceof ByteBufferInputStream)) {
+            // Read the input on another thread while this one parses it. A ByteBuffer
+            // is already in memory, so gains nothing from this
+            readAhead = new ReadAheadInputStream(in.getByteStream(), readAheadBuffers, inputBufferSize > 0 ? inputBufferSize : 65536);
+            InputSource in2 = new InputSource(in.getSystemId());
+            in2.setPublicId(in.getPublicId());
+            in2.setEncoding(in.getEncoding());
+            in2.setByteStream(readAhead);
+            in = in2;
+        }
         curreader = CPReader.getReader("", in.getPublicId(), in.getSystemId(), null, 1, 1, 0, false);
 
         try {
@@ -319,7 +376,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                                     tq.setDocumentLocator(BFOXMLReader.this);
                                     tq.startDocument();
                                 }
-                                curreader = CPReader.getReader(fin, true, null);
+                                curreader = CPReader.getReader(fin, true, null, inputBufferSize, featureGzip ? gzipStreams : null);
                                 readDocument(curreader);
                                 if (tq.isContentHandler()) {
                                     tq.endDocument();
@@ -334,11 +391,11 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                                 // exception of some sort on this thread again to
                                 // halt.
                                 tq.fatalError(e);
-                            } catch (Exception e) {
-                                // Same for other classes
+                            } catch (Throwable e) {
+                                // Same for other classes, including Errors
                                 tq.fatalError2(e);
                             }
-                        } catch (Exception e) {
+                        } catch (Throwable e) {
                             // All this does is capture the "echo" exception
                         }
                     }
@@ -367,7 +424,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                         q.setDocumentLocator(this);
                         q.startDocument();
                     }
-                    curreader = CPReader.getReader(in, true, null);
+                    curreader = CPReader.getReader(in, true, null, inputBufferSize, featureGzip ? gzipStreams : null);
                     readDocument(curreader);
                     if (q.isContentHandler()) {
                         q.endDocument();
@@ -386,13 +443,36 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
     }
 
     void postParse() {
+        if (readAhead != null) {
+            readAhead.stop();
+            readAhead = null;
+        }
+        // Inflaters not already ended by reaching the end of their input or being closed
+        for (GzipInputStream in : gzipStreams) {
+            in.end();
+        }
+        gzipStreams.clear();
         q = null;
         buf = null;
         curreader = null;
         dtd = null;
-        stack.clear();
+        depth = 0;
+        for (Context ctx : stack) {
+            if (ctx != null) {
+                ctx.name = ctx.uri = ctx.localName = null;
+                ctx.element = null;
+            }
+        }
+        Arrays.fill(nsPrefix, 0, nsCount, null);
+        Arrays.fill(nsURI, 0, nsCount, null);
+        nsCount = 0;
+        if (attributes != null) {
+            attributes.clear();
+        }
         entityStack.clear();
         internMap.clear();
+        symbols.clear();
+        symbolsAdded = 0;
     }
 
     /**
@@ -418,37 +498,93 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
         return standalone || dtd == null || dtd.getSystemId() == null;
     }
 
+    /**
+     * An open element. The namespace bindings it declares are nsPrefix/nsURI[nsStart..nsEnd)
+     */
     private static class Context {
         String name;
-        Context parent;
-        Map<String,String> map;
-        List<String> prefixes;
+        String uri, localName;      // as passed to startElement, when namespace aware
         Element element;
-        Context(String name, Element element, Context parent) {
-            this.name = name;
-            this.element = element;
-            this.parent = parent;
-            if (parent == null) {
-               this.map = new HashMap<String,String>();
-               map.put("", "");
-            } else {
-                this.map = parent.map;
-            }
+        int nsStart, nsEnd;
+    }
+
+    /**
+     * Return the Context for a new element, to be pushed onto the stack if it's not empty
+     */
+    private Context newContext(String name, Element element) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth + (depth>>1));
+        }
+        Context ctx = stack[depth];
+        if (ctx == null) {
+            ctx = stack[depth] = new Context();
+        }
+        ctx.name = name;
+        ctx.element = element;
+        ctx.uri = ctx.localName = null;
+        ctx.nsStart = ctx.nsEnd = nsCount;
+        return ctx;
+    }
+
+    /**
+     * Return an empty BFOAttributes for the element being started
+     */
+    private BFOAttributes newAttributes() {
+        if (!q.isBufSafe()) {
+            // The attributes may be read after the next element has started
+            return new BFOAttributes();
+        } else if (attributes == null) {
+            attributes = new BFOAttributes();
+        } else {
+            attributes.clear();
+        }
+        return attributes;
+    }
+
+    /**
+     * Bind a prefix to a namespace for the element being started, which must be the last one given by newContext
+     */
+    private void register(Context ctx, String prefix, String uri) {
+        if (nsCount == nsPrefix.length) {
+            nsPrefix = Arrays.copyOf(nsPrefix, nsCount * 2);
+            nsURI = Arrays.copyOf(nsURI, nsCount * 2);
         }
-        void register(String prefix, String uri) {
-            if (parent != null && map == parent.map) {
-                map = new HashMap<String,String>(parent.map);
+        nsPrefix[nsCount] = prefix;
+        nsURI[nsCount++] = uri;
+        ctx.nsEnd = nsCount;
+    }
+
+    /**
+     * Unbind the prefixes bound by an element, calling endPrefixMapping for each one
+     */
+    private void unregister(Context ctx) throws SAXException {
+        if (q.isContentHandler()) {
+            for (int i=ctx.nsStart;i<ctx.nsEnd;i++) {
+                q.endPrefixMapping(nsPrefix[i]);
             }
-            map.put(prefix, uri);
         }
-        String namespace(String prefix) {
-            if (prefix.equals("xml")) {
-                return XMLConstants.XML_NS_URI;
-            } else if (prefix.equals("xmlns")) {
-                return "";      // Yes, confirmed
+        for (int i=ctx.nsStart;i<nsCount;i++) {
+            nsPrefix[i] = nsURI[i] = null;
+        }
+        nsCount = ctx.nsStart;
+    }
+
+    /**
+     * Return the namespace bound to a prefix, or null if it's not bound. There are usually
+     * only a few bindings in scope, so they're searched from the innermost out
+     */
+    private String namespace(String prefix) {
+        if (prefix.equals("xml")) {
+            return XMLConstants.XML_NS_URI;
+        } else if (prefix.equals("xmlns")) {
+            return "";      // Yes, confirmed
+        }
+        for (int i=nsCount-1;i>=0;i--) {
+            if (nsPrefix[i].equals(prefix)) {
+                return nsURI[i];
             }
-            return map.get(prefix);
         }
+        return prefix.length() == 0 ? "" : null;
     }
 
     private String newString(int start) {
@@ -479,6 +615,35 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
         }
     }
 
+    /**
+     * Append a run of codepoints from the reader, stopping before the first one in delims
+     * or which needs special handling. The next call to reader.read() returns that codepoint.
+     */
+    private void appendRun(final CPReader reader, final CPReader.Delimiters delims) throws IOException, SAXException {
+        appendRun(reader, delims, Integer.MAX_VALUE);
+    }
+
+    /**
+     * As appendRun, but stop when len reaches limit, so the caller can pass on what it
+     * has. The next call to reader.read() may then return a codepoint that's not in delims
+     */
+    private void appendRun(final CPReader reader, final CPReader.Delimiters delims, final int limit) throws IOException, SAXException {
+        int n, end;
+        do {
+            if (len >= limit) {
+                return;
+            }
+            if (len == buf.length) {
+                char[] buf2 = new char[len + (len>>1)];
+                System.arraycopy(buf, 0, buf2, 0, len);
+                buf = buf2;
+            }
+            end = Math.min(buf.length, limit);
+            n = reader.readRun(buf, len, end - len, delims);
+            len += n;
+        } while (n > 0 && len == end);
+    }
+
     private void append(CPReader reader) throws IOException, SAXException {
         int c;
         while ((c=reader.read()) >= 0) {
@@ -521,14 +686,11 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
     }
 
     static boolean isNameStartChar(int c) {
-        if (c == ' ') {
-            return false;
-        }
-        return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == ':' || c == '_' || c >= 0xC0 && c <= 0xD6 || c >= 0xD8 && c <= 0xF6 || c >= 0xF8 && c <= 0x2FF || c >= 0x370 && c <= 0x37D || c >= 0x37F && c <= 0x1FFF || c >= 0x200C && c <= 0x200D || c >= 0x2070 && c <= 0x218F || c >= 0x2C00 && c <= 0x2FEF || c >= 0x3001 && c <= 0xD7FF || c >= 0xF900 && c <= 0xFDCF || c >= 0xFDF0 && c <= 0xFFFD || c >= 0x10000 && c <= 0xEFFFF;
+        return NameChars.isNameStartChar(c);
     }
 
     static boolean isNameChar(int c) {
-        return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '-' || c == '.' || c >= '0' && c <= '9' || c == ':' || c == '_' || c == 0xB7 || c >= 0xC0 && c <= 0xD6 || c >= 0xD8 && c <= 0xF6 || c >= 0xF8 && c <= 0x2FF || c >= 0x300 && c <= 0x37D || c >= 0x37F && c <= 0x1FFF || c >= 0x200C && c <= 0x200D || c >= 0x203F && c <= 0x2040 || c >= 0x2070 && c <= 0x218F || c >= 0x2C00 && c <= 0x2FEF || c >= 0x3001 && c <= 0xD7FF || c >= 0xF900 && c <= 0xFDCF || c >= 0xFDF0 && c <= 0xFFFD || c >= 0x10000 && c <= 0xEFFFF;
+        return NameChars.isNameChar(c);
     }
 
     private void readS(final CPReader reader) throws SAXException, IOException {
@@ -546,13 +708,15 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
     private String readName(final CPReader reader) throws SAXException, IOException {
         final int start = len;
         if (isNameStartChar(c)) {
+            int hash = SymbolTable.hash(0, c);
             append(c);
             c = reader.read();
             while (c != ' ' && c != '>' && isNameChar(c)) {
+                hash = SymbolTable.hash(hash, c);
                 append(c);
                 c = reader.read();
             }
-            String s = newString(start);
+            String s = featureSymbolTable ? symbol(start, len, hash) : newString(start);
             len = start;
             return s;
         } else {
@@ -1015,10 +1179,22 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
      * Cursor left after final quote
      */
     private String readAttValue(final CPReader reader, final int quote, final String attName, final String elementName) throws SAXException, IOException {
+        final int start = len;
+        appendAttValue(reader, quote, attName, elementName);
+        String s = newString(start);
+        len = start;
+        return s;
+    }
+
+    /**
+     * As readAttValue, but the value is left in buf, starting at the value of len when called
+     */
+    private void appendAttValue(final CPReader reader, final int quote, final String attName, final String elementName) throws SAXException, IOException {
         boolean expanding = toggleParameterEntityExpansion(reader, false);
         try {
             if (quote == '\'' || quote == '"' || quote == -1) {
-                final int start = len;
+                final CPReader.Delimiters delims = quote == '"' ? RUN_ATTVALUE_QUOT : quote == '\'' ? RUN_ATTVALUE_APOS : RUN_ATTVALUE;
+                appendRun(reader, delims);
                 while ((c = reader.read()) != quote) {
                     if (c == '&') {
                         Entity entity = readReference(reader);
@@ -1039,7 +1215,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                             } else {
                                 entityStack.add(entity);
                                 CPReader entityReader = getEntityReader(reader, entity);
-                                readAttValue(entityReader, -1, attName, elementName); // recursive!
+                                appendAttValue(entityReader, -1, attName, elementName); // recursive!
                                 entityReader.close();
                                 entityStack.remove(entityStack.size() - 1);
                             }
@@ -1053,16 +1229,10 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                     } else {
                         append(c);
                     }
-                }
-                if (quote != -1) {
-                    String s = newString(start);
-                    len = start;
-                    return s;
-                } else {
-                    return null;
+                    appendRun(reader, delims);
                 }
             } else {
-                return error(reader, "QuoteRequiredInAttValue", elementName, attName);
+                error(reader, "QuoteRequiredInAttValue", elementName, attName);
             }
         } finally {
             toggleParameterEntityExpansion(reader, expanding);
@@ -1078,6 +1248,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
             c = reader.read();
             if (c == '-') {
                 final int start = len;
+                appendRun(reader, RUN_COMMENT);
                 while ((c=reader.read()) >= 0) {
                     if (c == '-') {
                         c = reader.read();
@@ -1101,6 +1272,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                     } else {
                         append(c);
                     }
+                    appendRun(reader, RUN_COMMENT);
                 }
                 error(reader, "CommentUnterminated");
             } else {
@@ -1121,7 +1293,9 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
         if (q.isLexicalHandler()) {
             q.startCDATA();
         }
-        final int start = len;
+        final int max = maxText();
+        int start = len;
+        boolean chunked = false;
         int d = 0;
         c = reader.read();
         while (c >= 0) {
@@ -1132,7 +1306,9 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
             } else if (c == ']' && d == 2) {
                 append(']');
             } else if (c == '>' && d == 2) {
-                flush(start, false);
+                if (len > start || !chunked) {
+                    flush(start, false);
+                }
                 if (q.isLexicalHandler()) {
                     q.endCDATA();
                 }
@@ -1149,6 +1325,14 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
             } else {
                 append(c);
             }
+            if (d == 0) {
+                appendRun(reader, RUN_CDATA, start + max);
+            }
+            if (len - start >= max) {
+                // Any "]" that may start the "]]>" is in d, not buf
+                start = flush(start, false);
+                chunked = true;
+            }
             c = reader.read();
         }
         error(reader, "CDSectUnterminated");
@@ -1449,7 +1633,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                 }
                 dtd = cacheddtd;
             } else if (source != null) {
-                dtdreader = CPReader.getReader(source, true, reader.isXML11());
+                dtdreader = CPReader.getReader(source, true, reader.isXML11(), inputBufferSize, featureGzip ? gzipStreams : null);
             }
         }
         if (!dtd.isClosed()) {
@@ -2000,45 +2184,61 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
     private void readETag(final CPReader reader) throws IOException, SAXException {
         c = reader.read();
         // endElement
-        String qName = readName(reader);
-        if (featureInternStrings) {
-            qName = intern(qName);
+        if (depth == 0) {
+            String qName = readName(reader);
+            if (isS(c)) {
+                readS(reader);
+            }
+            error(reader, "Unexpected end element tag \"</" + qName + ">\"");
         }
-        if (isS(c)) {
-            readS(reader);
+        final Context ctx = stack[--depth];
+        // Match the name against the open element's as it's read, rather than building a String
+        final String qName = ctx.name;
+        final int n = qName.length();
+        int i = 0;
+        while (i < n) {
+            if (c > 0xffff) {
+                final int u = CPReader.toUTF16(c);
+                if (i + 1 == n || qName.charAt(i) != (char)(u>>>16) || qName.charAt(i + 1) != (char)u) {
+                    break;
+                }
+                i += 2;
+            } else if (c == qName.charAt(i)) {
+                i++;
+            } else {
+                break;
+            }
+            c = reader.read();
         }
-        if (stack.isEmpty()) {
-            error(reader, "Unexpected end element tag \"</" + qName + ">\"");
+        if (i < n || isNameChar(c)) {
+            // Not a match: read the rest of the name for the message
+            String s;
+            if (i == 0) {
+                s = readName(reader);
+            } else {
+                final int start = len;
+                append(qName.substring(0, i));
+                while (c != ' ' && c != '>' && isNameChar(c)) {
+                    append(c);
+                    c = reader.read();
+                }
+                s = newString(start);
+                len = start;
+            }
+            if (isS(c)) {
+                readS(reader);
+            }
+            error(reader, "ETagRequired", qName, s);
         }
-        Context ctx = stack.remove(stack.size() - 1);
-        if (!qName.equals(ctx.name)) {
-            error(reader, "ETagRequired", ctx.name, qName);
+        if (isS(c)) {
+            readS(reader);
         }
         if (c == '>') {
             if (featureNamespaces) {
-                int ix = qName.indexOf(':');
-                String uri;
-                if (ix > 0) {
-                    String prefix = qName.substring(0, ix);
-                    String localName = qName.substring(ix + 1);
-                    if (featureInternStrings) {
-                        localName = intern(localName);
-                    }
-                    uri = ctx.namespace(prefix);
-                    if (q.isContentHandler()) {
-                        q.endElement(uri, localName, qName);
-                    }
-                } else {
-                    uri = ctx.namespace("");
-                    if (q.isContentHandler()) {
-                        q.endElement(uri, qName, qName);
-                    }
-                }
-                if (q.isContentHandler() && ctx.prefixes != null) {
-                    for (String s : ctx.prefixes) {
-                        q.endPrefixMapping(s);
-                    }
+                if (q.isContentHandler()) {
+                    q.endElement(ctx.uri, ctx.localName, qName);
                 }
+                unregister(ctx);
             } else {
                 if (q.isContentHandler()) {
                     q.endElement("", "", qName);
@@ -2051,8 +2251,9 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
 
     private void readSTag(final CPReader reader) throws IOException, SAXException {
         // startElement
+        final int start = len;
         final String qName = featureInternStrings ? intern(readName(reader)) : readName(reader);
-        List<String> tmpatts = null;
+        BFOAttributes atts = null;
         boolean selfClosing = false;
         if (isS(c)) {
             readS(reader);
@@ -2068,21 +2269,24 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                     readS(reader);
                 }
                 if (c == '=') {
-                    if (tmpatts == null) {
-                        tmpatts = new ArrayList<String>();
+                    if (atts == null) {
+                        atts = newAttributes();
                     }
-                    for (int i=0;i<tmpatts.size();i+=2) {
-                        if (tmpatts.get(i).equals(attName)) {
-                            error(reader, "AttributeNotUnique", qName, attName);
-                        }
+                    if (atts.getIndex(attName) >= 0) {
+                        error(reader, "AttributeNotUnique", qName, attName);
                     }
                     c = reader.read();
                     if (isS(c)) {
                         readS(reader);
                     }
-                    String attValue = readAttValue(reader, c, attName, qName);
-                    tmpatts.add(attName);
-                    tmpatts.add(attValue);
+                    if (featureLazyAttributeValues) {
+                        // The value stays in buf until startElement has been called
+                        final int valueStart = len;
+                        appendAttValue(reader, c, attName, qName);
+                        atts.add(attName, valueStart, len, true);
+                    } else {
+                        atts.add(attName, readAttValue(reader, c, attName, qName), true);
+                    }
                 } else {
                     error(reader, "EqRequiredInAttribute", qName, attName);
                 }
@@ -2097,158 +2301,146 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
             c = reader.read();
         }
         if (c == '>') {
-            final Element element = dtd == null ? null : dtd.getElement(qName);
-            Context parent;
-            if (stack.isEmpty()) {
-                // This next requirement is only for validating!
-                //if (dtd != null && !qName.equals(dtd.getName())) {
-                //    error(reader, "RootElementTypeMustMatchDoctypedecl", dtd.getName(), qName);
-                //}
-                parent = null;
-            } else {
-                parent = stack.get(stack.size() - 1);
+            if (atts != null) {
+                atts.setBuffer(buf);
             }
-            Context ctx = new Context(qName, element, parent);
-            BFOAttributes atts = null;
-            Map<String,Attribute> defaultAtts = element == null ? null : element.getAttributesWithDefaults();
-            if (defaultAtts != null) {
-                defaultAtts = new HashMap<String,Attribute>(defaultAtts);
-                if (tmpatts == null) {
-                    tmpatts = new ArrayList<String>();
+            final Element element = dtd == null ? null : dtd.getElement(qName);
+            // This next requirement is only for validating!
+            //if (depth == 0 && dtd != null && !qName.equals(dtd.getName())) {
+            //    error(reader, "RootElementTypeMustMatchDoctypedecl", dtd.getName(), qName);
+            //}
+            final Context ctx = newContext(qName, element);
+            final Attribute[] defaults = element == null ? null : element.getDefaults();
+            if (defaults != null) {
+                if (atts == null) {
+                    atts = newAttributes();
+                }
+                // Mark the defaults that were specified, then add the rest
+                final int words = (defaults.length + 63) >> 6;
+                long[] seen = defaultsSeen;
+                if (seen == null || seen.length < words) {
+                    seen = defaultsSeen = new long[words];
+                } else {
+                    Arrays.fill(seen, 0, words, 0);
                 }
-                for (int i=0;i<tmpatts.size();i+=2) {
-                    String attQName = tmpatts.get(i);
-                    if (defaultAtts != null) {
-                        defaultAtts.remove(attQName);
+                for (int i=0;i<atts.getLength();i++) {
+                    int slot = element.getDefaultSlot(atts.getQName(i));
+                    if (slot >= 0) {
+                        seen[slot >> 6] |= 1L << slot;
                     }
                 }
-                for (Attribute a : defaultAtts.values()) {
-                    tmpatts.add(a.getQName());
-                    tmpatts.add(a.getDefaultValue());
-                }
-                if (defaultAtts.isEmpty()) {
-                    defaultAtts = null;
+                for (int i=0;i<defaults.length;i++) {
+                    if ((seen[i >> 6] & (1L << i)) == 0) {
+                        atts.add(defaults[i].getQName(), defaults[i].getDefaultValue(), false);
+                    }
                 }
             }
-            if (tmpatts != null) {
+            if (atts != null) {
                 if (featureNamespaces) {
-                    for (int i=0;i<tmpatts.size();i+=2) {
-                        String attQName = tmpatts.get(i);
+                    boolean removed = false;
+                    for (int i=0;i<atts.getLength();i++) {
+                        String attQName = atts.getQName(i);
                         if (attQName.equals("xmlns")) {
-                            String attValue = tmpatts.get(i + 1);
+                            String attValue = atts.getValue(i);
                             if (featureInternStrings) {
                                 attValue = intern(attValue);
                             }
                             if (q.isContentHandler()) {
                                 q.startPrefixMapping("", attValue);
-                                if (ctx.prefixes == null) {
-                                    ctx.prefixes = new ArrayList<String>();
-                                }
-                                ctx.prefixes.add("");
                             }
-                            ctx.register("", attValue);
+                            register(ctx, "", attValue);
                             if (!featureNamespacePrefixes) {
-                                tmpatts.set(i, null);
+                                atts.remove(i);
+                                removed = true;
                             }
                         } else if (attQName.startsWith("xmlns:")) {
-                            String prefix = attQName.substring(6);
+                            String prefix = substring(attQName, 6, attQName.length());
                             if (prefix.equals("xmlns") || prefix.equals("xml")) {
                                 error(reader, "CantBindXMLNS");
                             } else if (prefix.equals("xml")) {
                                 error(reader, "CantBindXML");
                             }
-                            String attValue = tmpatts.get(i + 1);
+                            String attValue = atts.getValue(i);
                             if (featureInternStrings) {
                                 attValue = intern(attValue);
                             }
                             if (q.isContentHandler()) {
                                 q.startPrefixMapping(prefix, attValue);
-                                if (ctx.prefixes == null) {
-                                    ctx.prefixes = new ArrayList<String>();
-                                }
-                                ctx.prefixes.add(prefix);
                             }
-                            ctx.register(prefix, attValue);
+                            register(ctx, prefix, attValue);
                             if (!featureNamespacePrefixes) {
-                                tmpatts.set(i, null);
+                                atts.remove(i);
+                                removed = true;
                             }
                         }
                     }
-                }
-                for (int i=0;i<tmpatts.size();) {
-                    String attQName = tmpatts.get(i++);
-                    if (attQName != null) {
-                        if (atts == null) {
-                            atts = new BFOAttributes();
-                        }
-                        final boolean specified = defaultAtts == null || !defaultAtts.containsKey(attQName);
-                        String attValue = tmpatts.get(i++);
-                        // "If the attribute type is not CDATA, then the XML processor must further process
-                        //  the normalized attribute value by discarding any leading and trailing space
-                        //  characters, and by replacing sequences of space characters by a
-                        //  single  character."
-                        //
-                        // on balance, most attributes will be CDATA, so check that first.
-
-                        Attribute a = element != null ? element.getAttributes().get(attQName) : null;
-                        if (a != null && !"CDATA".equals(a.getType())) {
-                            StringBuilder sb = new StringBuilder();
-                            boolean ws = false;
-                            for (int j=0;j<attValue.length();j++) {
-                                char c = attValue.charAt(j);
-                                if (c == ' ') {
-                                    if (sb.length() > 0) {
-                                        ws = true;
-                                    }
-                                } else {
-                                    if (ws) {
-                                        sb.append(' ');
-                                        ws = false;
-                                    }
-                                    sb.append(c);
+                    if (removed) {
+                        atts.compact();
+                    }
+                }
+                final Map<String,Attribute> tokenized = element == null ? null : element.getTokenizedAttributes();
+                for (int i=0;i<atts.getLength();i++) {
+                    final String attQName = atts.getQName(i);
+                    // "If the attribute type is not CDATA, then the XML processor must further process
+                    //  the normalized attribute value by discarding any leading and trailing space
+                    //  characters, and by replacing sequences of space characters by a
+                    //  single  character."
+                    //
+                    // on balance, most attributes will be CDATA, so check that first.
+
+                    Attribute a = tokenized != null ? tokenized.get(attQName) : null;
+                    if (a != null) {
+                        final String attValue = atts.getValue(i);
+                        StringBuilder sb = new StringBuilder();
+                        boolean ws = false;
+                        for (int j=0;j<attValue.length();j++) {
+                            char c = attValue.charAt(j);
+                            if (c == ' ') {
+                                if (sb.length() > 0) {
+                                    ws = true;
                                 }
+                            } else {
+                                if (ws) {
+                                    sb.append(' ');
+                                    ws = false;
+                                }
+                                sb.append(c);
                             }
-                            attValue = sb.toString();
                         }
+                        atts.setValue(i, sb.toString());
+                    }
 
-                        if (featureNamespaces) {
-                            int ix = attQName.indexOf(":");
-                            if (ix == 0 && factory.xercescompat && reader.isXML11()) {
-                                error(reader, "Attribute " + fmt(attQName) + " has zero-length prefix");
+                    if (featureNamespaces) {
+                        int ix = attQName.indexOf(":");
+                        if (ix == 0 && factory.xercescompat && reader.isXML11()) {
+                            error(reader, "Attribute " + fmt(attQName) + " has zero-length prefix");
+                        }
+                        if (ix > 0) {
+                            String prefix = substring(attQName, 0, ix);
+                            String localName = substring(attQName, ix + 1, attQName.length());
+                            if (featureInternStrings) {
+                                localName = intern(localName);
                             }
-                            if (ix > 0) {
-                                String prefix = attQName.substring(0, ix);
-                                String localName = attQName.substring(ix + 1);
-                                if (featureInternStrings) {
-                                    localName = intern(localName);
-                                }
-                                if (localName.indexOf(':') >= 0) {
-                                    error(reader, "Attribute " + fmt(attQName) + " not a valid QName");
-                                }
-                                if (factory.xercescompat && localName.length() == 0 && reader.isXML11()) {
-                                    error(reader, "Attribute " + fmt(attQName) + " has zero-length localName");
-                                }
-                                String uri = ctx.namespace(prefix);
-                                if (uri == null) {
-                                    error(reader, "AttributePrefixUnbound", qName, attQName, prefix);
-                                }
-                                for (int j=0;j<atts.getLength();j++) {
-                                    if (atts.getLocalName(j).equals(localName) && atts.getURI(j).equals(uri)) {
-                                        error(reader, "AttributeNSNotUnique", qName, localName, uri);
-                                    }
-                                }
-                                atts.add(uri, localName, attQName, "CDATA", attValue, specified);
-                            } else {
-                                atts.add("", attQName, attQName, "CDATA", attValue, specified);
+                            if (localName.indexOf(':') >= 0) {
+                                error(reader, "Attribute " + fmt(attQName) + " not a valid QName");
+                            }
+                            if (factory.xercescompat && localName.length() == 0 && reader.isXML11()) {
+                                error(reader, "Attribute " + fmt(attQName) + " has zero-length localName");
+                            }
+                            String uri = namespace(prefix);
+                            if (uri == null) {
+                                error(reader, "AttributePrefixUnbound", qName, attQName, prefix);
+                            }
+                            if (atts.setName(i, uri, localName) >= 0) {
+                                error(reader, "AttributeNSNotUnique", qName, localName, uri);
                             }
                         } else {
-                            atts.add("", "", attQName, "CDATA", attValue, specified);
+                            atts.setName(i, "", attQName);
                         }
-                    } else {
-                        i++;
                     }
                 }
             }
+            final Attributes attributes = atts != null && atts.getLength() > 0 ? atts : BFOAttributes.EMPTYATTS;
             if (featureNamespaces) {
                 int ix = qName.indexOf(':');
                 if (ix == 0 && factory.xercescompat && reader.isXML11()) {
@@ -2256,11 +2448,11 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                 }
                 String uri;
                 if (ix > 0) {
-                    String prefix = qName.substring(0, ix);
+                    String prefix = substring(qName, 0, ix);
                     if (prefix.equals("xmlns")) {
                         error(reader, "ElementXMLNSPrefix");
                     }
-                    String localName = qName.substring(ix + 1);
+                    String localName = substring(qName, ix + 1, qName.length());
                     if (featureInternStrings) {
                         localName = intern(localName);
                     }
@@ -2270,45 +2462,50 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                     if (factory.xercescompat && localName.length() == 0 && reader.isXML11()) {
                         error(reader, "Element " + fmt(qName) + " has zero-length localName");
                     }
-                    uri = ctx.namespace(prefix);
+                    uri = namespace(prefix);
                     if (uri == null) {
                         error(reader, "ElementPrefixUnbound", qName, prefix);
                     }
+                    ctx.uri = uri;
+                    ctx.localName = localName;
                     if (q.isContentHandler()) {
-                        q.startElement(uri, localName, qName, atts != null ? atts : BFOAttributes.EMPTYATTS);
+                        q.startElement(uri, localName, qName, attributes);
                         if (selfClosing) {
                             q.endElement(uri, localName, qName);
                         } else {
-                            stack.add(ctx);
+                            depth++;
                         }
                     }
                 } else {
-                    uri = ctx.namespace("");
+                    uri = namespace("");
+                    ctx.uri = uri;
+                    ctx.localName = qName;
                     if (q.isContentHandler()) {
-                        q.startElement(uri, qName, qName, atts != null ? atts : BFOAttributes.EMPTYATTS);
+                        q.startElement(uri, qName, qName, attributes);
                         if (selfClosing) {
                             q.endElement(uri, qName, qName);
                         } else {
-                            stack.add(ctx);
+                            depth++;
                         }
                     }
                 }
-                if (selfClosing && q.isContentHandler() && ctx.prefixes != null) {
-                    for (String s : ctx.prefixes) {
-                        q.endPrefixMapping(s);
-                    }
+                if (selfClosing) {
+                    unregister(ctx);
                 }
             } else {
                 if (q.isContentHandler()) {
-                    q.startElement("", "", qName, atts != null ? atts : BFOAttributes.EMPTYATTS);
+                    q.startElement("", "", qName, attributes);
                     if (selfClosing) {
                         q.endElement("", "", qName);
                     } else {
-                        stack.add(ctx);
+                        depth++;
                     }
                 }
             }
         }
+        if (len > start) {
+            len = postBuffer(start);
+        }
     }
 
     private void readDocument(final CPReader reader) throws IOException, SAXException {
@@ -2378,15 +2575,30 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
             skip = false;
         }
         // prolog finished, cursor is start start of name after '<'
+        if (featureDecodeThread) {
+            // The XML declaration and DTD are read, so the rest of the document
+            // can be decoded ahead of us without changing how it's decoded
+            final ThreadedCPReader decoder = new ThreadedCPReader(reader);
+            curreader = decoder;
+            try {
+                readRoot(decoder);
+            } finally {
+                decoder.stop();
+            }
+        } else {
+            readRoot(reader);
+        }
+    }
 
+    private void readRoot(final CPReader reader) throws IOException, SAXException {
         // element ::= EmptyElemTag | STag content ETag
         // content ::= CharData? ((element | Reference | CDSect | PI | Comment) CharData?)*
         // 
         readSTag(reader);
-        if (!stack.isEmpty()) {
+        if (depth > 0) {
             readContent(reader, false);
-            if (!stack.isEmpty()) {
-                String name = stack.get(stack.size() - 1).name;
+            if (depth > 0) {
+                String name = stack[depth - 1].name;
                 error(reader, "ETagRequired", name);
             }
         }
@@ -2421,7 +2633,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
             boolean ignoreWhitespace = false;
             if (ignore) {
                 if (dtd != null) {
-                    Context ctx = stack.get(stack.size() - 1);
+                    Context ctx = stack[depth - 1];
                     String name = ctx.name;
                     Element elt = ctx.element;
                     if (elt != null) {
@@ -2450,6 +2662,14 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
         return len;
     }
 
+    /**
+     * Return the length of text to collect before passing it to characters(), even if there's
+     * more to come: the input-buffer-size if it's set, or the size postBuffer allows otherwise
+     */
+    private int maxText() {
+        return inputBufferSize == 0 ? 65536 : inputBufferSize;
+    }
+
     private int postBuffer(int start) {
         if (!q.isBufSafe()) {
             int max = inputBufferSize == 0 ? 65536 : inputBufferSize * 4;
@@ -2472,12 +2692,13 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
         if (c != '<') {
             allowProlog = false;
         }
+        final int max = maxText();
         int bba = 0;
         int start = len;
         while (c > 0) {
             if (c == '<') {
                 bba = 0;
-                if (len > 0) {
+                if (len > start) {
                     start = flush(start, true);
                 }
                 c = reader.read();
@@ -2513,7 +2734,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                     start = len;
                 } else if (c == '/') {
                     readETag(reader);
-                    if (stack.isEmpty()) {
+                    if (depth == 0) {
                         break;
                     }
                     start = len;
@@ -2522,7 +2743,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                     start = len;
                 }
             } else if (c == '&') {
-                if (len > 0) {
+                if (len > start) {
                     start = flush(start, true);
                 }
                 // API says
@@ -2587,9 +2808,13 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                 } else {
                     bba = 0;
                 }
-                if (inputBufferSize > 0 && len > inputBufferSize) {
-//                    start = flush(start, true);
-                }
+            }
+            if (bba == 0) {
+                appendRun(reader, RUN_CONTENT, start + max);
+            }
+            if (len - start >= max) {
+                // Pass long text on in parts, so buf doesn't grow to hold all of it
+                start = flush(start, true);
             }
             c = reader.read();
         }
@@ -2658,7 +2883,7 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
                     }
                 }
                 if (out == null) {
-                    out = CPReader.getReader(source, false, xml11);
+                    out = CPReader.getReader(source, false, xml11, inputBufferSize, featureGzip ? gzipStreams : null);
                     if (urn != null) {
                         String value = out.asString();
                         if (cachelog.isLoggable(Level.FINE)) {
@@ -2722,6 +2947,47 @@ class BFOXMLReader implements XMLReader, Locator2, Location {
         return source;
     }
 
+    /**
+     * Return part of a name, such as its prefix or local part
+     */
+    private String substring(String s, int start, int end) {
+        if (!featureSymbolTable) {
+            return s.substring(start, end);
+        }
+        final int hash = SymbolTable.hash(s, start, end);
+        String t = factory.symbols.get(s, start, end, hash);
+        if (t == null && (t = symbols.get(s, start, end, hash)) == null) {
+            t = addSymbol(s.substring(start, end), hash);
+        }
+        return t;
+    }
+
+    /**
+     * Return the name in buf from start to end, from the factory's symbol table or this parse's
+     */
+    private String symbol(int start, int end, int hash) {
+        String s = factory.symbols.get(buf, start, end, hash);
+        if (s == null && (s = symbols.get(buf, start, end, hash)) == null) {
+            s = addSymbol(new String(buf, start, end - start), hash);
+        }
+        return s;
+    }
+
+    /**
+     * Add a name that's in neither symbol table. The factory's table is shared and never
+     * emptied, so each parse adds at most MAXSYMBOLS names to it, and the rest go in
+     * this parse's own table, which is emptied when the parse ends.
+     */
+    private String addSymbol(String name, int hash) {
+        String s = null;
+        if (symbolsAdded < MAXSYMBOLS && (s = factory.symbols.add(name, hash)) != null) {
+            symbolsAdded++;
+        } else {
+            s = symbols.add(name, hash);
+        }
+        return s == null ? name : s;
+    }
+
     private String intern(String s) {
         String t = internMap.putIfAbsent(s, s);
         return t == null ? s : t;
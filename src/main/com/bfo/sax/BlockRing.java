@@ -0,0 +1,152 @@
+package com.bfo.sax;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * A ring of blocks filled on one thread and read on another, to run I/O or
+ * decoding ahead of the parser so the two threads only meet once per block.
+ * The filling thread stops after the last block of the input, after the first
+ * Throwable it gets - kept with the block it was filling, for the reading
+ * thread to throw once it gets there - or when {@link #stop} is called.
+ * {@link #stop} returns only once that thread has exited, so whatever it was
+ * reading can then be closed or handed back.
+ *
+ * The filling thread is always a Thread of its own, not one from the factory's
+ * ExecutorService: it lives as long as the parse and blocks while the ring is
+ * full, so a ring that depends on another - decoding input that's read ahead -
+ * could otherwise wait forever for a pool thread held by the one it reads from.
+ */
+final class BlockRing<B extends BlockRing.Block> implements Runnable {
+
+    private final B[] q;
+    private final Filler<B> filler;
+    private final ReentrantLock lock;
+    private final Condition notEmpty, notFull, exited;
+    private int takeIndex, putIndex, count;
+    private boolean stopped, running;
+
+    // Read by the reading thread only
+    private B block;
+
+    static class Block {
+        boolean last;           // no more blocks follow this one
+        Throwable error;        // thrown while filling this block, which is then the last
+    }
+
+    interface Filler<B> {
+        /**
+         * Fill the block from the input, setting {@link Block#last} if
+         * the input is finished. Called on the filling thread.
+         */
+        void fill(B block) throws Exception;
+    }
+
+    /**
+     * Create a new BlockRing and start filling it
+     * @param q the blocks to fill, at least two
+     * @param filler the Filler to fill each block
+     * @param name the name of the filling Thread
+     */
+    BlockRing(B[] q, Filler<B> filler, String name) {
+        this.q = q;
+        this.filler = filler;
+        this.lock = new ReentrantLock(false);
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+        this.exited = lock.newCondition();
+        this.running = true;
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The filling thread: fill each free block in turn until the
+     * input is finished or fails, or this ring is stopped
+     */
+    @Override public void run() {
+        try {
+            B b;
+            do {
+                lock.lock();
+                try {
+                    while (count == q.length && !stopped) {
+                        notFull.awaitUninterruptibly();
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                    b = q[putIndex];
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    filler.fill(b);
+                } catch (Throwable e) {
+                    b.error = e;
+                    b.last = true;
+                }
+                lock.lock();
+                try {
+                    if (++putIndex == q.length) {
+                        putIndex = 0;
+                    }
+                    count++;
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+            } while (!b.last);
+        } finally {
+            lock.lock();
+            try {
+                running = false;
+                exited.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Hand the current block back to be filled again, and wait for the
+     * next one. Must not be called once the current block is the last.
+     * @return the next block
+     */
+    B next() {
+        lock.lock();
+        try {
+            if (block != null) {
+                if (++takeIndex == q.length) {
+                    takeIndex = 0;
+                }
+                count--;
+                notFull.signal();
+            }
+            while (count == 0) {
+                notEmpty.awaitUninterruptibly();
+            }
+            return block = q[takeIndex];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the filling thread once it's finished with the current block,
+     * and wait for it to exit.
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            notFull.signal();
+            while (running) {
+                exited.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads from a ByteBuffer. The bytes read are those
+ * between the position and the limit of the buffer when this stream was
+ * created; the buffer's own position is not changed. If the buffer
+ * is backed by an array, CPReader will decode directly from that
+ * array rather than reading it through this stream.
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+        this.buf = buf.duplicate();
+    }
+
+    /**
+     * Return the buffer this stream reads from. Its position is the next byte to read
+     */
+    ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    @Override public int read() {
+        return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        } else if (!buf.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buf.remaining());
+        buf.get(b, off, len);
+        return len;
+    }
+
+    // Buffer methods are called through Buffer so this links against Java 8, where they aren't covariant
+
+    @Override public long skip(long n) {
+        n = Math.max(0, Math.min(n, buf.remaining()));
+        ((Buffer)buf).position(buf.position() + (int)n);
+        return n;
+    }
+
+    @Override public int available() {
+        return buf.remaining();
+    }
+
+    @Override public boolean markSupported() {
+        return true;
+    }
+
+    @Override public void mark(int limit) {
+        ((Buffer)buf).mark();
+    }
+
+    @Override public void reset() {
+        ((Buffer)buf).reset();
+    }
+
+    @Override public String toString() {
+        return "{bytebuffer " + buf + "}";
+    }
+
+}
@@ -1,12 +1,36 @@
 package com.bfo.sax;
 
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.charset.*;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.xml.sax.*;
 
 // CodePoint reader - returns codepoints or -1 on EOF
 abstract class CPReader {
 
+    // The stream for readers that already hold all their input
+    private static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+    private static final Reader EMPTYREADER = new Reader() {
+        @Override public int read(char[] buf, int off, int len) {
+            return -1;
+        }
+        @Override public void close() {
+        }
+    };
+    // Buffer sizes when input-buffer-size isn't set: reads start at MINBUFFER, and each
+    // read that fills the buffer doubles it for the next, up to MAXBUFFER
+    private static final int MINBUFFER = 8192, MAXBUFFER = 256 * 1024;
+    private static final int PROLOG = 1024;     // the most read looking for the XML declaration
+    private static final Map<String,String> CHARSETNAMES = new ConcurrentHashMap<String,String>();
+    private static final Map<String,char[]> SINGLEBYTEMAPS = new ConcurrentHashMap<String,char[]>();
+    private static final Map<String,MultiByteTables> MULTIBYTETABLES = new ConcurrentHashMap<String,MultiByteTables>();
+
     public int getLineNumber() {
         return -1;
     }
@@ -43,6 +67,22 @@ abstract class CPReader {
 
     public abstract int read() throws SAXException, IOException;
 
+    /**
+     * Copy a run of codepoints into the buffer, stopping before the first one that is
+     * a delimiter, needs more handling than a straight copy (line-endings, surrogates,
+     * invalid characters) or won't fit. That codepoint is left to be returned by the
+     * next call to read(), so it is always safe for this method to return 0, which is
+     * what the default implementation does.
+     * @param buf the buffer to copy into
+     * @param off the offset into buf to copy to
+     * @param max the maximum number of chars to copy
+     * @param delims the set of ASCII chars, created by {@link #delimiters}, that end the run
+     * @return the number of chars copied
+     */
+    public int readRun(char[] buf, int off, int max, Delimiters delims) throws SAXException, IOException {
+        return 0;
+    }
+
     public String asString() throws SAXException, IOException {
         StringBuilder sb = new StringBuilder();
         int c;
@@ -89,6 +129,33 @@ abstract class CPReader {
                     return c;
                 }
             }
+            @Override public int readRun(char[] buf, int off, int max, Delimiters delims) {
+                final int end = Math.min(in.length(), i + max);
+                int j = i;
+                while (j < end) {
+                    char c = in.charAt(j);
+                    if (c < 0x80) {
+                        if (delims.table[c]) {
+                            break;
+                        } else if (c == '\n') {
+                            line++;
+                            col = 1;
+                        } else {
+                            col++;
+                        }
+                    } else if (c >= 0xd800 && c <= 0xdbff) {
+                        break;
+                    } else {
+                        col++;
+                    }
+                    j++;
+                }
+                int n = j - i;
+                in.getChars(i, j, buf, off);
+                offset += n;
+                i = j;
+                return n;
+            }
             @Override public String getPublicId() {
                 return publicId;
             }
@@ -119,50 +186,81 @@ abstract class CPReader {
 
     /**
      * Return a new CPReader that reads from the InputSource
-     *
+     * @param bufsize the size of the buffer to read the stream with, or 0 to start
+     * small and grow it while the stream keeps filling it
+     * @param gzip if not null, gzip-compressed input is inflated and the GzipInputStream
+     * inflating it is added to this, so it can be ended once the parse is done
      */
-    static CPReader getReader(InputSource source, boolean xml, Boolean xml11) throws IOException, SAXException {
+    static CPReader getReader(InputSource source, boolean xml, Boolean xml11, int bufsize, Collection<GzipInputStream> gzip) throws IOException, SAXException {
         final String publicid = source.getPublicId();
         final String systemid = source.getSystemId();
         final String sourceenc = source.getEncoding();
         CPReader reader;
         if (source.getCharacterStream() != null) {
-            reader = new CharStreamReader(source.getCharacterStream(), publicid, systemid, sourceenc, Boolean.TRUE.equals(xml11), "");
+            Reader in = source.getCharacterStream();
+            // A CharBuffer with an array is read straight from that array
+            CharBuffer cb = in instanceof CharBufferReader ? ((CharBufferReader)in).getBuffer() : null;
+            if (cb != null && cb.hasArray()) {
+                reader = new CharStreamReader(EMPTYREADER, publicid, systemid, sourceenc, Boolean.TRUE.equals(xml11), cb.array(), cb.arrayOffset() + cb.position(), cb.arrayOffset() + cb.limit(), 0);
+            } else {
+                reader = new CharStreamReader(in, publicid, systemid, sourceenc, Boolean.TRUE.equals(xml11), new char[bufsize > 0 ? bufsize : MINBUFFER], 0, 0, bufsize > 0 ? 0 : MAXBUFFER);
+            }
         } else if (source.getByteStream() != null) {
-            final InputStream in = source.getByteStream();
-            byte[] b = new byte[1024];
-            int c, len = 0;
-            // First read the first N bytes, or stop at '>'
-            while (len < b.length && (c=in.read()) >= 0) {
-                b[len++] = (byte)c;
-                if (c == '>') {
-                    break;
-                }
+            InputStream in = source.getByteStream();
+            // A ByteBuffer with an array is read straight from that array. Anything else
+            // is read into what will be the reader's buffer, in as few reads as possible
+            ByteBuffer bb = in instanceof ByteBufferInputStream ? ((ByteBufferInputStream)in).getBuffer() : null;
+            byte[] b;
+            int start, len, maxbuf;
+            if (bb != null && bb.hasArray()) {
+                b = bb.array();
+                start = bb.arrayOffset() + bb.position();
+                len = bb.arrayOffset() + bb.limit();
+                maxbuf = 0;
+            } else {
+                bb = null;
+                b = new byte[bufsize > 0 ? Math.max(bufsize, PROLOG) : MINBUFFER];
+                start = 0;
+                len = readProlog(in, b);
+                maxbuf = bufsize > 0 ? 0 : MAXBUFFER;
+            }
+            if (gzip != null && len - start >= 2 && b[start] == (byte)0x1f && b[start + 1] == (byte)0x8b) {
+                // gzip-compressed, which can't be mistaken for text. Inflate it
+                // into the reader's buffer, and look for the prolog again in that
+                GzipInputStream gin = new GzipInputStream(bb != null ? EMPTY : in, b, start, len, bufsize);
+                gzip.add(gin);
+                in = gin;
+                bb = null;
+                b = new byte[bufsize > 0 ? Math.max(bufsize, PROLOG) : MINBUFFER];
+                start = 0;
+                len = readProlog(in, b);
+                maxbuf = bufsize > 0 ? 0 : MAXBUFFER;
             }
             // Check for a BOM
+            final int n = len - start;
             String bomenc = null, xmlenc = null;
             int skip = 0;
-            if (b[0] == (byte)0xfe && b[1] == (byte)0xff) {
+            if (n >= 2 && b[start] == (byte)0xfe && b[start + 1] == (byte)0xff) {
                 bomenc = "UTF-16BE";
                 skip = 2;
-            } else if (b[0] == (byte)0xff && b[1] == (byte)0xfe) {
+            } else if (n >= 2 && b[start] == (byte)0xff && b[start + 1] == (byte)0xfe) {
                 bomenc = "UTF-16LE";
                 skip = 2;
-            } else if (b[0] == (byte)0xef && b[1] == (byte)0xbb && b[2] == (byte)0xbf) {
+            } else if (n >= 3 && b[start] == (byte)0xef && b[start + 1] == (byte)0xbb && b[start + 2] == (byte)0xbf) {
                 bomenc = "UTF-8";
                 skip = 3;
-            } else if (b[0] == 0 && b[1] == (byte)0x3c && b[2] == 0 && b[3] == (byte)0x3f) {
+            } else if (n >= 4 && b[start] == 0 && b[start + 1] == (byte)0x3c && b[start + 2] == 0 && b[start + 3] == (byte)0x3f) {
                 bomenc = "UTF-16BE";
-            } else if (b[0] == (byte)0x3c && b[1] == 0 && b[2] == (byte)0x3f && b[3] == (byte)0) {
+            } else if (n >= 4 && b[start] == (byte)0x3c && b[start + 1] == 0 && b[start + 2] == (byte)0x3f && b[start + 3] == 0) {
                 bomenc = "UTF-16LE";
             }
-            if (bomenc != null && bomenc.startsWith("UTF-16") && (len&1) == 1) {
-                b[len++] = (byte)in.read();
-            }
-            String prolog = new String(b, skip, len - skip, bomenc != null ? bomenc : "ISO-8859-1");
+            // The prolog is scanned in place for ASCII chars, one byte each or two for UTF-16
+            int off = start + skip;
+            final int step = bomenc != null && bomenc.startsWith("UTF-16") ? 2 : 1;
+            final int lo = "UTF-16BE".equals(bomenc) ? 1 : 0;
+            int c;
             if (!xml) {
-                for (int i=0;i<prolog.length();i++) {
-                    c = prolog.charAt(i);
+                for (int i=0;(c=prologChar(b, off, len, step, lo, i)) >= 0;i++) {
                     if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
                         if (c == '<') {
                             xml = true;
@@ -171,28 +269,24 @@ abstract class CPReader {
                     }
                 }
             }
-            // Now try and identify if its XML (it might not be - could be an included text entity
-            // This is very, very hacky but the idea is if we hit any character that would prevent
-            // it being XML, its text. It matters because the default encoding for text is ISO8859-1
-            if (xml) {
-                String s = prolog.replaceAll("\t\n\r", " ");
-                if (s.length() > 0 && s.charAt(s.length() - 1) == '>' && s.charAt(s.length() - 2) == '?' && s.charAt(0) == '<' && s.charAt(1) == '?' && Character.toLowerCase(s.charAt(2)) == 'x' && Character.toLowerCase(s.charAt(3)) == 'm' && Character.toLowerCase(s.charAt(4)) == 'l') {
-                    s = s.substring(5, s.length() - 2).trim();
-                    if (s.startsWith("version") && s.indexOf(" ") > 0) {
-                        if (xml11 == null) {
-                            xml11 = s.startsWith("version=\"1.1\"") || s.startsWith("version='1.1'");
-                        }
-                        s = s.substring(s.indexOf(" ")).trim();
-                    }
-                    if (s.startsWith("encoding=")) {
-                        s = s.substring(9);
-                        if (s.length() > 0) {
-                            c = s.charAt(0);
-                            int i;
-                            if ((c == '\'' || c == '"') && (i=s.indexOf((char)c, 1)) > 0) {
-                                xmlenc = s.substring(1, i);
-                            }
-                        }
+            // If it's XML, read the version and encoding from the XML declaration
+            if (xml && prologMatch(b, off, len, step, lo, 0, "<?", false) && prologMatch(b, off, len, step, lo, 2, "xml", true)) {
+                // The version is skipped. Until the parser has read it the declaration is
+                // read as XML 1.0, as XML 1.1 doesn't allow its line-ends in the declaration
+                int i = prologSpace(b, off, len, step, lo, 5);
+                int v = prologAttribute(b, off, len, step, lo, i, "version");
+                if (v > 0) {
+                    final int quote = prologChar(b, off, len, step, lo, v - 1);
+                    for (i=v;(c=prologChar(b, off, len, step, lo, i)) >= 0 && c != quote;i++);
+                    i = prologSpace(b, off, len, step, lo, i + 1);
+                }
+                v = bomenc == null ? prologAttribute(b, off, len, step, lo, i, "encoding") : -1;
+                if (v > 0) {
+                    final int quote = prologChar(b, off, len, step, lo, v - 1);
+                    for (i=v;(c=prologChar(b, off, len, step, lo, i)) >= 0 && c != quote;i++);
+                    if (c == quote) {
+                        // No BOM, so one byte per char
+                        xmlenc = i - v == 5 && prologMatch(b, off, len, step, lo, v, "utf-8", true) ? "UTF-8" : new String(b, off + v, i - v, StandardCharsets.ISO_8859_1);
                     }
                 }
             }
@@ -204,32 +298,22 @@ abstract class CPReader {
                 // If it's XML, use the encoding attribute if specified (fail if invalid), or utf-8
                 // If it's anything else, use the source encoding if specified, or utf-8
                 if (xmlenc != null) {
-                    enc = "shift-jis".equalsIgnoreCase(xmlenc) || "shift_jis".equalsIgnoreCase(xmlenc) ? "windows-31j" : xmlenc;
-                    try {
-                        enc = Charset.forName(enc).name();
-                        publicenc = xmlenc;
-                    } catch (Exception e) {
+                    enc = getCharsetName(xmlenc);
+                    if (enc == null) {
                         throw new SAXParseException("Unsupported encoding \"" + xmlenc + "\"", publicid, systemid, -1, -1);
                     }
+                    publicenc = xmlenc;
                 } else if (xml) {
                     enc = publicenc = "UTF-8";
                 } else if (sourceenc != null) {
-                    enc = "shift-jis".equalsIgnoreCase(sourceenc) || "shift_jis".equalsIgnoreCase(sourceenc) ? "windows-31j" : sourceenc;
-                    boolean supported = false;
-                    try {
-                        enc = Charset.forName(enc).name();
-                        publicenc = sourceenc;
-                    } catch (Exception e) {
+                    enc = getCharsetName(sourceenc);
+                    if (enc == null) {
                         enc = "UTF-8";
+                    } else {
+                        publicenc = sourceenc;
                     }
                 } else {
-                    // Try UTF-8, if that fails, use ISO8859-1
-                    try {
-                        new String(b, skip, len - skip, "UTF-8");
-                        enc = "UTF-8";
-                    } catch (Exception e) {
-                        enc = "ISO-8859-1";
-                    }
+                    enc = "UTF-8";
                 }
             }
             // System.out.println("IN: xml="+xml+" bomenc="+bomenc+" publicenc="+publicenc+" sourceenc="+sourceenc+" enc="+enc+" skip="+skip+" len="+len);
@@ -237,14 +321,35 @@ abstract class CPReader {
                 xml11 = false;
             }
 
+            char[] map = null;
+            if (bb != null) {
+                // The array holds all the input
+                in = EMPTY;
+            }
             if (enc.equals("UTF-8")) {
-                reader = new UTF8CPReader(in, publicid, systemid, xml11, b, skip, len - skip);
-            } else if (enc.equals("ISO-8859-1")) {
-                reader = new ISO88591CPReader(in, publicid, systemid, xml11, b, skip, len - skip);
+                reader = new UTF8CPReader(in, publicid, systemid, xml11, b, off, len, maxbuf);
+            } else if (enc.equals("ISO-8859-1") || (map = getSingleByteMap(enc)) != null) {
+                String e = map == null ? "ISO-8859-1" : publicenc;
+                reader = new SingleByteCPReader(in, publicid, systemid, e, map, xml11, b, off, len, maxbuf);
+            } else if ((enc.equals("windows-31j") || enc.equals("Shift_JIS") || enc.equals("EUC-JP")) && getMultiByteTables(enc) != null) {
+                reader = new MultiByteCPReader(in, publicid, systemid, publicenc, getMultiByteTables(enc), xml11, b, off, len, maxbuf);
             } else {
-                prolog = new String(b, skip, len - skip, enc);
-                Reader r = new InputStreamReader(in, enc);
-                reader = new CharStreamReader(r, publicid, systemid, publicenc, xml11, prolog);
+                if (bb != null) {
+                    // These modify their buffer, so can't be given the array; read it as a stream
+                    in = new ByteArrayInputStream(b, off, len - off);
+                    b = new byte[bufsize > 0 ? bufsize : MINBUFFER];
+                    off = len = 0;
+                    maxbuf = bufsize > 0 ? 0 : MAXBUFFER;
+                }
+                if (enc.equals("UTF-16BE") || enc.equals("UTF-16LE") || enc.equals("UTF-16")) {
+                    // Without a BOM, "UTF-16" is big-endian
+                    reader = new UTF16CPReader(in, publicid, systemid, publicenc, !enc.equals("UTF-16LE"), xml11, b, off, len, maxbuf);
+                } else {
+                    if (len > off) {
+                        in = new SequenceInputStream(new ByteArrayInputStream(b, off, len - off), in);
+                    }
+                    reader = new CharStreamReader(new InputStreamReader(in, enc), publicid, systemid, publicenc, xml11, new char[bufsize > 0 ? bufsize : MINBUFFER], 0, 0, bufsize > 0 ? 0 : MAXBUFFER);
+                }
             }
         } else {
             throw new SAXException("InputSource has no streams");
@@ -252,6 +357,328 @@ abstract class CPReader {
         return reader;
     }
 
+    /**
+     * Read the start of a stream into buf, stopping as soon as there is enough to look
+     * for a BOM and XML declaration. That ends at the first '>', so a stream that sends
+     * the declaration and then waits isn't waited on.
+     * @return the number of bytes read
+     */
+    private static int readProlog(InputStream in, byte[] buf) throws IOException {
+        int len = 0, i = 0;
+        while (len < buf.length) {
+            final int l = in.read(buf, len, buf.length - len);
+            if (l < 0) {
+                break;
+            }
+            len += l;
+            while (i < len && buf[i] != '>') {
+                i++;
+            }
+            if (i < len || len >= PROLOG) {
+                break;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Return the ASCII char at index i of a prolog starting at buf[off], stored with
+     * step bytes per char and the low byte at lo, or -1 if it's past len or not ASCII
+     */
+    private static int prologChar(byte[] buf, int off, int len, int step, int lo, int i) {
+        final int p = off + i * step;
+        if (p + step > len || (step == 2 && buf[p + (lo ^ 1)] != 0)) {
+            return -1;
+        }
+        final int c = buf[p + lo];
+        return c >= 0 ? c : -1;
+    }
+
+    /**
+     * Return the index of the first non-whitespace char in the prolog at or after i
+     */
+    private static int prologSpace(byte[] buf, int off, int len, int step, int lo, int i) {
+        int c;
+        while ((c=prologChar(buf, off, len, step, lo, i)) == ' ' || c == '\t' || c == '\r' || c == '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Return true if the prolog has the string s at index i
+     * @param ignoreCase if true, s must be lower case
+     */
+    private static boolean prologMatch(byte[] buf, int off, int len, int step, int lo, int i, String s, boolean ignoreCase) {
+        for (int j=0;j<s.length();j++) {
+            int c = prologChar(buf, off, len, step, lo, i + j);
+            if (ignoreCase && c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != s.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * If the prolog has an attribute called name at index i, return the index
+     * of the first char of its value, after the quote. Otherwise return -1
+     */
+    private static int prologAttribute(byte[] buf, int off, int len, int step, int lo, int i, String name) {
+        if (!prologMatch(buf, off, len, step, lo, i, name, false)) {
+            return -1;
+        }
+        i = prologSpace(buf, off, len, step, lo, i + name.length());
+        if (prologChar(buf, off, len, step, lo, i) != '=') {
+            return -1;
+        }
+        i = prologSpace(buf, off, len, step, lo, i + 1);
+        final int quote = prologChar(buf, off, len, step, lo, i);
+        return quote == '"' || quote == '\'' ? i + 1 : -1;
+    }
+
+    /**
+     * Return the canonical name of a charset, or null if it's not supported.
+     * Names that are found are cached
+     */
+    static String getCharsetName(String name) {
+        String enc = CHARSETNAMES.get(name);
+        if (enc == null) {
+            enc = "shift-jis".equalsIgnoreCase(name) || "shift_jis".equalsIgnoreCase(name) ? "windows-31j" : name;
+            try {
+                enc = Charset.forName(enc).name();
+            } catch (Exception e) {
+                return null;
+            }
+            // Names are case-insensitive, so a document could make up any number of them
+            if (CHARSETNAMES.size() < 256) {
+                CHARSETNAMES.put(name, enc);
+            }
+        }
+        return enc;
+    }
+
+    /**
+     * Return the codepoint for each byte of a single-byte encoding, or null if
+     * the encoding isn't single-byte or doesn't match ASCII for 0x00-0x7F.
+     * The map is built once per encoding and cached.
+     * @param enc the canonical name of the encoding
+     */
+    static char[] getSingleByteMap(String enc) {
+        char[] map = SINGLEBYTEMAPS.get(enc);
+        if (map == null) {
+            map = new char[0];
+            try {
+                Charset charset = Charset.forName(enc);
+                if (charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1 && charset.newDecoder().maxCharsPerByte() == 1) {
+                    byte[] b = new byte[256];
+                    for (int i=0;i<b.length;i++) {
+                        b[i] = (byte)i;
+                    }
+                    char[] m = new String(b, charset).toCharArray();
+                    boolean ok = m.length == 256;
+                    for (int i=0;i<m.length && ok;i++) {
+                        ok = i < 0x80 ? m[i] == i : !Character.isSurrogate(m[i]);
+                    }
+                    if (ok) {
+                        map = m;
+                    }
+                }
+            } catch (Exception e) { }
+            SINGLEBYTEMAPS.put(enc, map);
+        }
+        return map.length == 0 ? null : map;
+    }
+
+    /**
+     * Return the lookup tables for a multi-byte encoding, or null if the encoding
+     * doesn't match ASCII for 0x00-0x7F or has sequences of more than three bytes.
+     * The tables are built once per encoding and cached.
+     * @param enc the canonical name of the encoding
+     */
+    static MultiByteTables getMultiByteTables(String enc) {
+        MultiByteTables tables = MULTIBYTETABLES.get(enc);
+        if (tables == null) {
+            try {
+                tables = new MultiByteTables(Charset.forName(enc));
+            } catch (Exception e) {
+                tables = MultiByteTables.NONE;
+            }
+            MULTIBYTETABLES.put(enc, tables);
+        }
+        return tables == MultiByteTables.NONE ? null : tables;
+    }
+
+    /**
+     * Tables mapping byte sequences of up to three bytes to a codepoint, built by
+     * running every sequence through the Charset's own decoder. In each table
+     * an entry of {@link #INVALID} means the sequence is not valid, and {@link #MORE}
+     * means the sequence so far is the start of a longer one
+     */
+    static final class MultiByteTables {
+        static final char INVALID = 0, MORE = 0xFFFF;
+        static final MultiByteTables NONE = new MultiByteTables();
+        final char[] single;    // indexed by b1
+        final char[][] pair;    // indexed by b1 then b2, only for b1 that start a sequence
+        final char[][] triple;  // indexed by b1 then b2<<8 | b3, only for b1 that start a three-byte sequence
+
+        private MultiByteTables() {
+            single = null;
+            pair = triple = null;
+        }
+
+        private MultiByteTables(Charset charset) {
+            CharsetDecoder decoder = charset.newDecoder();
+            ByteBuffer in = ByteBuffer.allocate(3);
+            CharBuffer out = CharBuffer.allocate(4);
+            single = new char[256];
+            pair = new char[256][];
+            triple = new char[256][];
+            for (int b1=0;b1<256;b1++) {
+                single[b1] = decode(decoder, in, out, b1);
+                if (b1 < 0x80 && single[b1] != b1) {
+                    throw new IllegalArgumentException("Not ASCII");
+                } else if (single[b1] == MORE) {
+                    pair[b1] = new char[256];
+                    for (int b2=0;b2<256;b2++) {
+                        char c = pair[b1][b2] = decode(decoder, in, out, b1, b2);
+                        if (c == MORE) {
+                            if (triple[b1] == null) {
+                                triple[b1] = new char[65536];
+                            }
+                            for (int b3=0;b3<256;b3++) {
+                                if ((triple[b1][b2<<8 | b3] = decode(decoder, in, out, b1, b2, b3)) == MORE) {
+                                    throw new IllegalArgumentException("Sequence too long");
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private static char decode(CharsetDecoder decoder, ByteBuffer in, CharBuffer out, int... b) {
+            // Cast to Buffer so this links against Java 8, where these methods aren't covariant
+            decoder.reset();
+            ((Buffer)in).clear();
+            for (int i=0;i<b.length;i++) {
+                in.put((byte)b[i]);
+            }
+            ((Buffer)in).flip();
+            ((Buffer)out).clear();
+            CoderResult result = decoder.decode(in, out, false);
+            if (result.isError()) {
+                return INVALID;
+            } else if (out.position() == 0) {
+                return MORE;
+            } else if (in.hasRemaining() || out.position() > 1) {
+                return INVALID;
+            }
+            char c = out.get(0);
+            return c >= 0xfffe || Character.isSurrogate(c) ? INVALID : c;
+        }
+    }
+
+    /**
+     * Create a set of delimiters for {@link #readRun}. Control characters other
+     * than tab and newline, and DEL, are always delimiters
+     * @param chars the ASCII chars that should also end a run; no more than three may be printable
+     */
+    static Delimiters delimiters(String chars) {
+        return new Delimiters(chars);
+    }
+
+    /**
+     * A set of delimiters for {@link #readRun}, as a table for checking one char
+     * at a time and as words for checking eight bytes at a time
+     */
+    static final class Delimiters {
+        private static final long ONES = 0x0101010101010101L, HIGH = 0x8080808080808080L;
+        final boolean[] table;
+        // Each printable delimiter repeated in all eight bytes. Unused slots are
+        // zero, which only ever matches NUL - a control, so already a delimiter
+        private final long w0, w1, w2;
+
+        private Delimiters(String chars) {
+            table = new boolean[128];
+            for (int i=0;i<0x20;i++) {
+                table[i] = i != '\t' && i != '\n';
+            }
+            table[0x7f] = true;
+            long[] words = new long[3];
+            int n = 0;
+            for (int i=0;i<chars.length();i++) {
+                char c = chars.charAt(i);
+                table[c] = true;
+                if (c >= 0x20) {
+                    words[n++] = c * ONES;
+                }
+            }
+            w0 = words[0];
+            w1 = words[1];
+            w2 = words[2];
+        }
+
+        /**
+         * Scan eight bytes in one go for anything that can't be copied straight
+         * into a run: non-ASCII, controls or delimiters.
+         * @param w the eight bytes, packed little-endian into a long
+         * @return 0 if all eight bytes can be copied, otherwise a value with the high bit
+         * set in the first byte that can't be (and possibly in later ones)
+         */
+        long scan(long w) {
+            // high bit already set for non-ASCII; +1 sets it for 0x7F; -0x20 sets it for controls.
+            // Borrows and carries only ever move up, so the lowest byte flagged is always a true match
+            long x0 = w ^ w0, x1 = w ^ w1, x2 = w ^ w2;
+            long m = w | (w + ONES) | (w - 0x20 * ONES);
+            m |= ((x0 - ONES) & ~x0) | ((x1 - ONES) & ~x1) | ((x2 - ONES) & ~x2);
+            return m & HIGH;
+        }
+
+        /**
+         * Copy plain ASCII to a char array a word at a time, stopping before the
+         * first word with a byte that {@link #scan} would flag, or when fewer than
+         * eight bytes or chars remain.
+         * @param words the bytes, as a little-endian ByteBuffer over an array
+         * @param pos the index of the first byte to copy
+         * @param len the index after the last byte available
+         * @param out the array to copy to
+         * @param o the index in out to copy to
+         * @param end the index after the last char available in out
+         * @return the number of bytes copied
+         */
+        int copyASCII(ByteBuffer words, int pos, int len, char[] out, int o, int end) {
+            final byte[] buf = words.array();
+            final int start = pos;
+            if (AsciiRuns.ENABLED) {
+                // Long runs are copied a vector at a time, leaving any tail to the loop below
+                final int k = AsciiRuns.copy(buf, pos, len, out, o, end, (byte)w0, (byte)w1, (byte)w2);
+                pos += k;
+                o += k;
+            }
+            while (pos + 8 <= len && o + 8 <= end && scan(words.getLong(pos)) == 0) {
+                for (int i=0;i<8;i++) {
+                    out[o + i] = (char)buf[pos + i];
+                }
+                o += 8;
+                pos += 8;
+            }
+            return pos - start;
+        }
+
+        /**
+         * Copy plain ASCII to a char array with {@link AsciiRuns}, which must be
+         * enabled, stopping before the first byte that {@link #scan} would flag.
+         * Parameters as for {@link #copyASCII}, but over an array
+         * @return the number of bytes copied
+         */
+        int copyVector(byte[] buf, int pos, int len, char[] out, int o, int end) {
+            return AsciiRuns.copy(buf, pos, len, out, o, end, (byte)w0, (byte)w1, (byte)w2);
+        }
+    }
+
     /**
      * Return a new CPReader that reads from the InputStream, handling BOM and (if xml), XML encoding
      * @param sourceenc the encoding, as specified externall. Priority is BOM, XML encoding (if specified) and then this
@@ -275,22 +702,34 @@ abstract class CPReader {
     //--------------------------------------------------------------------
 
     private static class UTF8CPReader extends CPReader {
-        private final byte[] buf;
-        private int pos, len, column;
+        private byte[] buf;
+        private ByteBuffer wordbuf;             // view of buf for reading eight bytes at a time
+        private final int maxbuf;               // size buf may grow to, 0 if it doesn't
+        private int pos, len;
         private boolean xml11;
-        private int line, bufoffset;
+        // Columns aren't counted codepoint by codepoint. Instead linestart is the
+        // offset (bufoffset + pos) where the current line began, moved on by one
+        // for each continuation byte on it, and getColumnNumber() works it out
+        private int line, linestart, bufoffset;
         private final InputStream in;
         private final String publicId, systemId;
-        UTF8CPReader(InputStream in, String publicId, String systemId, boolean xml11, byte[] buf, int off, int len) {
+        /**
+         * Read from buf[start..end] and then from the stream, using buf as this reader's
+         * own buffer. If the stream is {@link #EMPTY} buf is never modified
+         * @param maxbuf the size the buffer may be replaced with as it grows, or 0 to keep it
+         */
+        UTF8CPReader(InputStream in, String publicId, String systemId, boolean xml11, byte[] buf, int start, int end, int maxbuf) {
             this.in = in;
             this.publicId = publicId;
             this.systemId = systemId;
-            this.buf = new byte[8192];
+            this.buf = buf;
+            this.maxbuf = maxbuf;
+            this.wordbuf = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
             this.xml11 = xml11;
-            System.arraycopy(buf, off, this.buf, 0, len);
-            this.len = len;
+            this.pos = start;
+            this.len = end;
+            this.bufoffset = -start;
             this.line = 1;
-            this.column = 1;
         }
         @Override public int read() throws IOException, SAXException {
             if (pos >= len) {
@@ -298,6 +737,11 @@ abstract class CPReader {
                     return -1;
                 }
                 bufoffset += pos;
+                if (len == buf.length && len < maxbuf) {
+                    // The stream is filling every read, so read more at a time
+                    buf = new byte[Math.min(len * 2, maxbuf)];
+                    wordbuf = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+                }
                 len = in.read(buf);
                 pos = 0;
                 if (len <= 0) {
@@ -306,7 +750,7 @@ abstract class CPReader {
                 }
             }
             int v = buf[pos++] & 0xFF;
-            column++;
+            final int p = pos;      // any continuation bytes taken from buf start here
             if (v < 0x20) {
                 // xml10
                 // * the two-character sequence #xD #xA
@@ -319,16 +763,16 @@ abstract class CPReader {
                 // * any #xD character that is not immediately followed by #xA or #x85.
                 if (v == '\n') {
                     line++;
-                    column = 1;
+                    linestart = bufoffset + pos;
                 } else if (v == '\r') {
-                    v = pos == len ? in.read() : buf[pos] & 0xFF;
+                    v = pos >= len ? in.read() : buf[pos] & 0xFF;
                     pos++;
                     if (xml11 && v == 0xC2) {        // 0xC2 0x85 is UTF-8 encoding for 0x84
-                        v = pos == len ? in.read() : buf[pos] & 0xFF;
+                        v = pos >= len ? in.read() : buf[pos] & 0xFF;
                         pos++;
                         if (v == 0x85) {
                             // noop
-                        } else if (pos <= len) {
+                        } else if (pos <= len || v < 0) {
                             pos -= 2;
                         } else {
                             buf[0] = (byte)0xC2;
@@ -352,7 +796,7 @@ abstract class CPReader {
                         v = '\n';
                     }
                     line++;
-                    column = 1;
+                    linestart = bufoffset + pos;
                 } else if (v != '\t' && v >= 0) {
                     throw new SAXParseException("Invalid character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());              
                 }
@@ -365,16 +809,17 @@ abstract class CPReader {
             } else if (v <= 0xDF) {
                 int v2 = pos < len ? buf[pos++] & 0xFF : in.read();
                 if (v2 < 0 || (v2 & 0xC0) != 0x80) {
-                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber() - (pos - p));
                 }
                 v = ((v&0x1F)<<6) | (v2&0x3F);
+                linestart += pos - p;
                 if (v < 0x80) {
                     throw new SAXParseException("overlong UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
                 } else if (xml11) {
                     if (v == 0x85) {
                         v = '\n';
                         line++;
-                        column = 1;
+                        linestart = bufoffset + pos;
                     } else if (v >= 0x7f && v <= 0x9f) {
                         throw new SAXParseException("Invalid XML 1.1 character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
                     }
@@ -382,19 +827,20 @@ abstract class CPReader {
             } else if (v <= 0xEF) {
                 int v2 = pos < len ? buf[pos++] & 0xFF : in.read();
                 if (v2 < 0 || (v2 & 0xC0) != 0x80) {
-                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber() - (pos - p));
                 }
                 int v3 = pos < len ? buf[pos++] & 0xFF : in.read();
                 if (v3 < 0 || (v3 & 0xC0) != 0x80) {
-                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber() - (pos - p));
                 }
                 v = ((v&0x0F)<<12) | ((v2&0x3F)<<6) | (v3&0x3F);
+                linestart += pos - p;
                 if (v < 0x800) {
                     throw new SAXParseException("overlong UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
                 } else if (xml11 && v == 0x2028) {
                     v = '\n';
                     line++;
-                    column = 1;
+                    linestart = bufoffset + pos;
                 }
                 if (v >= 0xd800 && (v <= 0xdfff || v == 0xfffe || v == 0xffff)) {
                     throw new SAXParseException("Invalid character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
@@ -402,25 +848,82 @@ abstract class CPReader {
             } else if (v <= 0xF7) {
                 int v2 = pos < len ? buf[pos++] & 0xFF : in.read();
                 if (v2 < 0 || (v2 & 0xC0) != 0x80) {
-                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber() - (pos - p));
                 }
                 int v3 = pos < len ? buf[pos++] & 0xFF : in.read();
                 if (v3 < 0 || (v3 & 0xC0) != 0x80) {
-                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber() - (pos - p));
                 }
                 int v4 = pos < len ? buf[pos++] & 0xFF : in.read();
                 if (v4 < 0 || (v4 & 0xC0) != 0x80) {
-                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber() - (pos - p));
                 }
                 v = ((v&0x07)<<18) | ((v2&0x3F)<<12) | ((v3&0x3F)<<6) | (v4&0x3F);
+                linestart += pos - p;
                 if (v < 0x8000) {
                     throw new SAXParseException("overlong UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
                 }
             } else {
-                throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                throw new SAXParseException("bad UTF-8 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber() - (pos - p));
             }
             return v;
         }
+        @Override public int readRun(char[] out, int off, int max, Delimiters delims) {
+            // Only the common cases are done here; anything unusual stops the run and goes through read()
+            final byte[] buf = this.buf;
+            final int len = this.len, end = off + max;
+            int pos = this.pos, o = off, line = this.line, linestart = this.linestart;
+            while (pos < len && o < end) {
+                // Plain ASCII text is copied a word at a time; the first byte
+                // that isn't goes through the rest of the loop as usual
+                if (buf[pos] >= 0) {
+                    final int k = delims.copyASCII(wordbuf, pos, len, out, o, end);
+                    o += k;
+                    pos += k;
+                    if (pos == len || o == end) {
+                        break;
+                    }
+                }
+                final int v = buf[pos];
+                if (v >= 0) {
+                    if (delims.table[v]) {
+                        break;
+                    } else if (v == '\n') {
+                        line++;
+                        linestart = bufoffset + pos + 1;
+                    }
+                    out[o++] = (char)v;
+                    pos++;
+                } else if (xml11) {
+                    break;
+                } else if ((v & 0xE0) == 0xC0 && pos + 1 < len) {
+                    final int v2 = buf[pos + 1];
+                    final int cp = ((v&0x1F)<<6) | (v2&0x3F);
+                    if ((v2 & 0xC0) != 0x80 || cp < 0x80) {
+                        break;
+                    }
+                    out[o++] = (char)cp;
+                    pos += 2;
+                    linestart++;
+                } else if ((v & 0xF0) == 0xE0 && pos + 2 < len) {
+                    final int v2 = buf[pos + 1];
+                    final int v3 = buf[pos + 2];
+                    final int cp = ((v&0x0F)<<12) | ((v2&0x3F)<<6) | (v3&0x3F);
+                    if ((v2 & 0xC0) != 0x80 || (v3 & 0xC0) != 0x80 || cp < 0x800 || (cp >= 0xd800 && (cp <= 0xdfff || cp >= 0xfffe))) {
+                        break;
+                    }
+                    out[o++] = (char)cp;
+                    pos += 3;
+                    linestart += 2;
+                } else {
+                    break;
+                }
+            }
+            this.pos = pos;
+            this.line = line;
+            this.linestart = linestart;
+            return o - off;
+        }
         @Override public void close() throws IOException {
             in.close();
         }
@@ -437,7 +940,7 @@ abstract class CPReader {
             return line;
         }
         @Override public int getColumnNumber() {
-            return column;
+            return bufoffset + Math.max(pos, 0) - linestart + 1;
         }
         @Override public int getCharacterOffset() {
             return bufoffset + pos - 1;
@@ -454,29 +957,43 @@ abstract class CPReader {
         }
     }
 
-    private static class ISO88591CPReader extends CPReader {
-        private final byte[] buf;
-        private int pos, len, line, column, bufoffset, lineoffset;
+    private static class SingleByteCPReader extends CPReader {
+        private byte[] buf;
+        private final int maxbuf;       // size buf may grow to, 0 if it doesn't
+        private final char[] map;       // codepoint for each byte, or null for ISO-8859-1
+        private int pos, len, line, linestart, bufoffset, lineoffset;     // linestart as for UTF8CPReader
         private boolean xml11;
         private final InputStream in;
-        private final String publicId, systemId;
-        ISO88591CPReader(InputStream in, String publicId, String systemId, boolean xml11, byte[] buf, int off, int len) {
+        private final String publicId, systemId, encoding;
+        /**
+         * Read from buf[start..end] and then from the stream, using buf as this reader's
+         * own buffer. If the stream is {@link #EMPTY} buf is never modified
+         * @param maxbuf the size the buffer may be replaced with as it grows, or 0 to keep it
+         */
+        SingleByteCPReader(InputStream in, String publicId, String systemId, String encoding, char[] map, boolean xml11, byte[] buf, int start, int end, int maxbuf) {
             this.in = in;
             this.publicId = publicId;
             this.systemId = systemId;
-            this.buf = new byte[8192];
+            this.encoding = encoding;
+            this.map = map;
+            this.buf = buf;
+            this.maxbuf = maxbuf;
             this.xml11 = xml11;
-            System.arraycopy(buf, off, this.buf, 0, len);
-            this.len = len;
+            this.pos = start;
+            this.len = end;
+            this.bufoffset = -start;
             this.line = 1;
-            this.column = 1;
         }
         @Override public int read() throws IOException, SAXException {
-            if (pos == len) {
+            if (pos >= len) {
                 if (pos < 0) {
                     return -1;
                 }
                 bufoffset += pos;
+                if (len == buf.length && len < maxbuf) {
+                    // The stream is filling every read, so read more at a time
+                    buf = new byte[Math.min(len * 2, maxbuf)];
+                }
                 len = in.read(buf);
                 if (len <= 0) {
                     pos = len = -1;
@@ -485,7 +1002,6 @@ abstract class CPReader {
                 pos = 0;
             }
             int v = buf[pos++] & 0xFF;
-            column++;
             if (v < 0x20) {
                 // xml10
                 // * the two-character sequence #xD #xA
@@ -498,11 +1014,11 @@ abstract class CPReader {
                 // * any #xD character that is not immediately followed by #xA or #x85.
                 if (v == '\n') {
                     line++;
-                    column = 1;
+                    linestart = bufoffset + pos;
                 } else if (v == '\r') {
-                    v = pos == len ? in.read() : buf[pos] & 0xFF;
+                    v = pos >= len ? in.read() : buf[pos] & 0xFF;
                     pos++;
-                    if (xml11 && v == 0x85) {
+                    if (xml11 && v >= 0x80 && (map == null ? v : map[v]) == 0x85) {
                         v = '\n';
                     } else if (v < 0) {
                         pos--;
@@ -518,23 +1034,68 @@ abstract class CPReader {
                         v = '\n';
                     }
                     line++;
-                    column = 1;
+                    linestart = bufoffset + pos;
                 } else if (v != '\t' && v >= 0) {
                     throw new SAXParseException("Invalid character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());              
                 }
             } else if (v >= 0x7f) {
+                if (v >= 0x80 && map != null) {
+                    v = map[v];
+                }
                 if (xml11) {
-                    if (v == 0x85) {
+                    if (v == 0x85 || v == 0x2028) {
                         v = '\n';
                         line++;
-                        column = 1;
-                    } else if (v >= 0x7f && v <= 0x9f) {
+                        linestart = bufoffset + pos;
+                    } else if (v <= 0x9f) {
                         throw new SAXParseException("Invalid XML 1.1 character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
                     }
                 }
             }
             return v;
         }
+        @Override public int readRun(char[] out, int off, int max, Delimiters delims) {
+            final byte[] buf = this.buf;
+            final char[] map = this.map;
+            final int end = Math.min(len, pos + max);
+            int pos = this.pos, line = this.line, linestart = this.linestart;
+            while (pos < end) {
+                // Long runs of plain ASCII are copied a vector at a time if the Vector API is
+                // there; the lower half of every supported charset is ASCII. The word-at-a-time
+                // scan used for UTF-8 is no faster than this loop, so isn't used without it
+                if (AsciiRuns.ENABLED && buf[pos] >= 0) {
+                    final int k = delims.copyVector(buf, pos, end, out, off, off + end - pos);
+                    off += k;
+                    pos += k;
+                    if (pos == end) {
+                        break;
+                    }
+                }
+                int v = buf[pos] & 0xFF;
+                if (v < 0x80) {
+                    if (delims.table[v]) {
+                        break;
+                    } else if (v == '\n') {
+                        line++;
+                        linestart = bufoffset + pos + 1;
+                    }
+                } else {
+                    if (map != null) {
+                        v = map[v];
+                    }
+                    if (xml11 && (v <= 0x9f || v == 0x2028)) {
+                        break;
+                    }
+                }
+                out[off++] = (char)v;
+                pos++;
+            }
+            final int n = pos - this.pos;
+            this.pos = pos;
+            this.line = line;
+            this.linestart = linestart;
+            return n;
+        }
         @Override public void close() throws IOException {
             in.close();
         }
@@ -545,13 +1106,13 @@ abstract class CPReader {
             return systemId;
         }
         @Override public String getEncoding() {
-            return "ISO-8859-1";
+            return encoding;
         }
         @Override public int getLineNumber() {
             return line;
         }
         @Override public int getColumnNumber() {
-            return column;
+            return bufoffset + Math.max(pos, 0) - linestart + 1;
         }
         @Override public int getCharacterOffset() {
             return bufoffset + pos - 1;
@@ -563,28 +1124,427 @@ abstract class CPReader {
             return xml11;
         }
         @Override public String toString() {
-            return "{inputstream-iso-8859-1 src="+BFOXMLReader.fmt(systemId)+"}";
+            return "{inputstream-" + (map == null ? "iso-8859-1" : encoding) + " src="+BFOXMLReader.fmt(systemId)+"}";
 //            return "{iso88591-inputstream xml11="+xml11+" src="+systemId+"}";
         }
     }
 
+    private static class MultiByteCPReader extends CPReader {
+        private byte[] buf;
+        private ByteBuffer wordbuf;             // view of buf for reading eight bytes at a time
+        private final int maxbuf;               // size buf may grow to, 0 if it doesn't
+        private final char[] single;
+        private final char[][] pair, triple;
+        private int pos, len, line, linestart, bufoffset;      // linestart as for UTF8CPReader
+        private boolean xml11;
+        private final InputStream in;
+        private final String publicId, systemId, encoding;
+        /**
+         * Read from buf[start..end] and then from the stream, using buf as this reader's
+         * own buffer. If the stream is {@link #EMPTY} buf is never modified
+         * @param maxbuf the size the buffer may be replaced with as it grows, or 0 to keep it
+         */
+        MultiByteCPReader(InputStream in, String publicId, String systemId, String encoding, MultiByteTables tables, boolean xml11, byte[] buf, int start, int end, int maxbuf) {
+            this.in = in;
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.encoding = encoding;
+            this.single = tables.single;
+            this.pair = tables.pair;
+            this.triple = tables.triple;
+            this.buf = buf;
+            this.maxbuf = maxbuf;
+            this.wordbuf = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+            this.xml11 = xml11;
+            this.pos = start;
+            this.len = end;
+            this.bufoffset = -start;
+            this.line = 1;
+        }
+        @Override public int read() throws IOException, SAXException {
+            if (pos >= len) {
+                if (pos < 0) {
+                    return -1;
+                }
+                bufoffset += pos;
+                if (len == buf.length && len < maxbuf) {
+                    // The stream is filling every read, so read more at a time
+                    buf = new byte[Math.min(len * 2, maxbuf)];
+                    wordbuf = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                len = in.read(buf);
+                if (len <= 0) {
+                    pos = len = -1;
+                    return -1;
+                }
+                pos = 0;
+            }
+            int v = buf[pos++] & 0xFF;
+            if (v < 0x20) {
+                // xml10
+                // * the two-character sequence #xD #xA
+                // * any #xD character that is not immediately followed by #xA
+                // xml11
+                // * the two-character sequence #xD #xA
+                // * the two-character sequence #xD #x85
+                // * the single character #x85
+                // * the single character #x2028
+                // * any #xD character that is not immediately followed by #xA or #x85.
+                // No multi-byte sequence we decode can begin with #xA, and none of
+                // the encodings we decode can represent #x85
+                if (v == '\n') {
+                    line++;
+                    linestart = bufoffset + pos;
+                } else if (v == '\r') {
+                    v = pos >= len ? in.read() : buf[pos] & 0xFF;
+                    pos++;
+                    if (v < 0) {
+                        pos--;
+                        v = '\n';
+                    } else if (v != '\n') {
+                        pos--;
+                        if (pos == len) {
+                            bufoffset++;
+                            buf[0] = (byte)v;
+                            len = 1;
+                            pos = 0;
+                        }
+                        v = '\n';
+                    }
+                    line++;
+                    linestart = bufoffset + pos;
+                } else if (v != '\t' && v >= 0) {
+                    throw new SAXParseException("Invalid character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                }
+            } else if (v >= 0x7f) {
+                if (v >= 0x80) {
+                    final int p = pos;
+                    int c = single[v];
+                    if (c == MultiByteTables.MORE) {
+                        final int v2 = pos < len ? buf[pos++] & 0xFF : in.read();
+                        c = v2 < 0 ? MultiByteTables.INVALID : pair[v][v2];
+                        if (c == MultiByteTables.MORE) {
+                            final int v3 = pos < len ? buf[pos++] & 0xFF : in.read();
+                            c = v3 < 0 ? MultiByteTables.INVALID : triple[v][v2<<8 | v3];
+                        }
+                    }
+                    if (c == MultiByteTables.INVALID) {
+                        throw new SAXParseException("bad " + encoding + " sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber() - (pos - p));
+                    }
+                    v = c;
+                    linestart += pos - p;
+                }
+                if (xml11) {
+                    if (v == 0x2028) {
+                        v = '\n';
+                        line++;
+                        linestart = bufoffset + pos;
+                    } else if (v <= 0x9f) {
+                        throw new SAXParseException("Invalid XML 1.1 character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    }
+                }
+                if (v >= 0xfffe) {
+                    throw new SAXParseException("Invalid character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                }
+            }
+            return v;
+        }
+        @Override public int readRun(char[] out, int off, int max, Delimiters delims) {
+            // Only the common cases are done here; anything unusual stops the run and goes through read()
+            final byte[] buf = this.buf;
+            final char[] single = this.single;
+            final char[][] pair = this.pair;
+            final boolean xml11 = this.xml11;
+            final int len = this.len, end = off + max;
+            int pos = this.pos, o = off, line = this.line, linestart = this.linestart;
+            while (pos < len && o < end) {
+                // Plain ASCII text is copied a word at a time, as for UTF-8
+                if (buf[pos] >= 0) {
+                    final int k = delims.copyASCII(wordbuf, pos, len, out, o, end);
+                    o += k;
+                    pos += k;
+                    if (pos == len || o == end) {
+                        break;
+                    }
+                }
+                final int v = buf[pos] & 0xFF;
+                if (v < 0x80) {
+                    if (delims.table[v]) {
+                        break;
+                    } else if (v == '\n') {
+                        line++;
+                        linestart = bufoffset + pos + 1;
+                    }
+                    out[o++] = (char)v;
+                    pos++;
+                } else {
+                    int c = single[v], n = 1;
+                    if (c == MultiByteTables.MORE) {
+                        if (pos + 1 >= len) {
+                            break;
+                        }
+                        final int v2 = buf[pos + 1] & 0xFF;
+                        c = pair[v][v2];
+                        n = 2;
+                        if (c == MultiByteTables.MORE) {
+                            if (pos + 2 >= len) {
+                                break;
+                            }
+                            c = triple[v][v2<<8 | (buf[pos + 2] & 0xFF)];
+                            n = 3;
+                        }
+                    }
+                    if (c == MultiByteTables.INVALID || (xml11 && (c <= 0x9f || c == 0x2028))) {
+                        break;
+                    }
+                    out[o++] = (char)c;
+                    pos += n;
+                    linestart += n - 1;
+                }
+            }
+            this.pos = pos;
+            this.line = line;
+            this.linestart = linestart;
+            return o - off;
+        }
+        @Override public void close() throws IOException {
+            in.close();
+        }
+        @Override public String getPublicId() {
+            return publicId;
+        }
+        @Override public String getSystemId() {
+            return systemId;
+        }
+        @Override public String getEncoding() {
+            return encoding;
+        }
+        @Override public int getLineNumber() {
+            return line;
+        }
+        @Override public int getColumnNumber() {
+            return bufoffset + Math.max(pos, 0) - linestart + 1;
+        }
+        @Override public int getCharacterOffset() {
+            return bufoffset + pos - 1;
+        }
+        @Override public void setXML11(boolean xml11) {
+            this.xml11 = xml11;
+        }
+        @Override public boolean isXML11() {
+            return xml11;
+        }
+        @Override public String toString() {
+            return "{inputstream-" + encoding + " src="+BFOXMLReader.fmt(systemId)+"}";
+        }
+    }
+
+    private static class UTF16CPReader extends CPReader {
+        private byte[] buf;
+        private final int maxbuf;       // size buf may grow to, 0 if it doesn't
+        private final int hi;           // offset of the high byte in each pair
+        private int pos, len;           // pos and len are in bytes
+        private boolean xml11;
+        private int line, linestart, bufoffset;         // linestart as for UTF8CPReader, with two bytes per column
+        private final InputStream in;
+        private final String publicId, systemId, encoding;
+        /**
+         * Read from buf[start..end] and then from the stream, using buf as this reader's
+         * own buffer, which is modified as it's refilled
+         * @param maxbuf the size the buffer may be replaced with as it grows, or 0 to keep it
+         */
+        UTF16CPReader(InputStream in, String publicId, String systemId, String encoding, boolean bigendian, boolean xml11, byte[] buf, int start, int end, int maxbuf) {
+            this.in = in;
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.encoding = encoding;
+            this.hi = bigendian ? 0 : 1;
+            this.buf = buf;
+            this.maxbuf = maxbuf;
+            this.xml11 = xml11;
+            this.pos = start;
+            this.len = end;
+            this.bufoffset = -start;
+            this.line = 1;
+        }
+        /**
+         * Refill the buffer so there is at least one complete code unit, keeping
+         * any odd byte left over from the last read.
+         * @return false if there are no more code units
+         */
+        private boolean fill() throws IOException, SAXException {
+            if (pos < 0) {
+                return false;
+            }
+            final int rem = len - pos;
+            final byte[] last = buf;
+            if (len == buf.length && len < maxbuf) {
+                // The stream is filling every read, so read more at a time
+                buf = new byte[Math.min(len * 2, maxbuf)];
+            }
+            if (rem > 0) {
+                buf[0] = last[pos];
+            }
+            bufoffset += pos;
+            pos = 0;
+            len = rem;
+            while (len < 2) {
+                int l = in.read(buf, len, buf.length - len);
+                if (l < 0) {
+                    if (len > 0) {
+                        throw new SAXParseException("truncated UTF-16 sequence", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    }
+                    pos = len = -1;
+                    return false;
+                }
+                len += l;
+            }
+            return true;
+        }
+        private int unit() throws IOException, SAXException {
+            if (len - pos < 2 && !fill()) {
+                return -1;
+            }
+            final int v = ((buf[pos + hi] & 0xFF) << 8) | (buf[pos + (hi ^ 1)] & 0xFF);
+            pos += 2;
+            return v;
+        }
+        @Override public int read() throws IOException, SAXException {
+            int v = unit();
+            if (v < 0) {
+                return -1;
+            }
+            if (v >= 0x7f) {
+                if (v >= 0xd800) {
+                    if (v <= 0xdbff) {
+                        int v2 = unit();
+                        if (v2 >= 0xdc00 && v2 <= 0xdfff) {
+                            v = fromUTF16(v, v2);
+                            linestart += 2;
+                        } else {
+                            throw new SAXParseException("lonely high surrogate &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                        }
+                    } else if (v <= 0xdfff) {
+                        throw new SAXParseException("lonely low surrogate &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    } else if (v == 0xfffe || v == 0xffff) {
+                        throw new SAXParseException("Invalid character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    }
+                } else if (xml11) {
+                    if (v == 0x85 || v == 0x2028) {
+                        v = '\n';
+                        line++;
+                        linestart = bufoffset + pos;
+                    } else if (v <= 0x9f) {
+                        throw new SAXParseException("Invalid XML 1.1 character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                    }
+                }
+            } else if (v < 0x20) {
+                // xml10
+                // * the two-character sequence #xD #xA
+                // * any #xD character that is not immediately followed by #xA
+                // xml11
+                // * the two-character sequence #xD #xA
+                // * the two-character sequence #xD #x85
+                // * the single character #x85
+                // * the single character #x2028
+                // * any #xD character that is not immediately followed by #xA or #x85.
+                if (v == '\n') {
+                    line++;
+                    linestart = bufoffset + pos;
+                } else if (v == '\r') {
+                    if (len - pos >= 2 || fill()) {
+                        final int v2 = ((buf[pos + hi] & 0xFF) << 8) | (buf[pos + (hi ^ 1)] & 0xFF);
+                        if (v2 == '\n' || (xml11 && v2 == 0x85)) {
+                            pos += 2;
+                        }
+                    }
+                    v = '\n';
+                    line++;
+                    linestart = bufoffset + pos;
+                } else if (v != '\t') {
+                    throw new SAXParseException("Invalid character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
+                }
+            }
+            return v;
+        }
+        @Override public int readRun(char[] out, int off, int max, Delimiters delims) {
+            final byte[] buf = this.buf;
+            final int len = this.len, end = off + max, hi = this.hi, lo = hi ^ 1;
+            int pos = this.pos, o = off, line = this.line, linestart = this.linestart;
+            while (pos + 1 < len && o < end) {
+                final int v = ((buf[pos + hi] & 0xFF) << 8) | (buf[pos + lo] & 0xFF);
+                if (v < 0x80) {
+                    if (delims.table[v]) {
+                        break;
+                    } else if (v == '\n') {
+                        line++;
+                        linestart = bufoffset + pos + 2;
+                    }
+                } else if (v >= 0xd800 && (v <= 0xdfff || v >= 0xfffe)) {
+                    break;
+                } else if (xml11 && (v <= 0x9f || v == 0x2028)) {
+                    break;
+                }
+                out[o++] = (char)v;
+                pos += 2;
+            }
+            this.pos = pos;
+            this.line = line;
+            this.linestart = linestart;
+            return o - off;
+        }
+        @Override public void close() throws IOException {
+            in.close();
+        }
+        @Override public String getPublicId() {
+            return publicId;
+        }
+        @Override public String getSystemId() {
+            return systemId;
+        }
+        @Override public String getEncoding() {
+            return encoding;
+        }
+        @Override public int getLineNumber() {
+            return line;
+        }
+        @Override public int getColumnNumber() {
+            return (bufoffset + Math.max(pos, 0) - linestart) / 2 + 1;
+        }
+        @Override public int getCharacterOffset() {
+            return (bufoffset + pos) / 2 - 1;
+        }
+        @Override public void setXML11(boolean xml11) {
+            this.xml11 = xml11;
+        }
+        @Override public boolean isXML11() {
+            return xml11;
+        }
+        @Override public String toString() {
+            return "{inputstream-utf16" + (hi == 0 ? "be" : "le") + " src="+BFOXMLReader.fmt(systemId)+"}";
+        }
+    }
+
     private static class CharStreamReader extends CPReader {
-        final private char[] buf;
-        private int pos, len, column;
+        private char[] buf;
+        private final int maxbuf;       // size buf may grow to, 0 if it doesn't
+        private int pos, len;
         private boolean xml11;
-        private int line, bufoffset;
+        private int line, linestart, bufoffset;         // linestart as for UTF8CPReader
         private final Reader in;
         private String publicid, systemid, encoding;
 
-        CharStreamReader(Reader in, String publicid, String systemid, String encoding, boolean xml11, String prolog) {
+        CharStreamReader(Reader in, String publicid, String systemid, String encoding, boolean xml11, char[] buf, int start, int end, int maxbuf) {
             this.in = in;
             this.publicid = publicid;
             this.systemid = systemid;
-            this.line = this.column = 1;
-            this.buf = new char[8192];
-            this.len = prolog.length();
+            this.line = 1;
+            this.buf = buf;
+            this.maxbuf = maxbuf;
+            this.pos = start;
+            this.len = end;
+            this.bufoffset = -start;
             this.xml11 = xml11;
-            System.arraycopy(prolog.toCharArray(), 0, buf, 0, len);
             if (in instanceof InputStreamReader && (encoding == null)) {
                 encoding = ((InputStreamReader)in).getEncoding();
             }
@@ -592,11 +1552,15 @@ abstract class CPReader {
         }
 
         @Override public int read() throws IOException, SAXException {
-            if (pos == len) {
+            if (pos >= len) {
                 if (pos < 0) {
                     return -1;
                 }
                 bufoffset += pos;
+                if (len == buf.length && len < maxbuf) {
+                    // The stream is filling every read, so read more at a time
+                    buf = new char[Math.min(len * 2, maxbuf)];
+                }
                 len = in.read(buf);
                 if (len <= 0) {
                     pos = len = -1;
@@ -605,13 +1569,14 @@ abstract class CPReader {
                 pos = 0;
             }
             int v = buf[pos++];
-            column++;
             if (v >= 0x7f) {
                 if (v >= 0xd800) {
                     if (v < 0xdbff) {
+                        final int p = pos;
                         int v2 = pos < len ? buf[pos++] : in.read();
                         if (v2 >= 0xdc00 && v2 <= 0xdfff) {
                             v = fromUTF16(v, v2);
+                            linestart += pos - p;
                         } else {
                             throw new SAXParseException("lonely high surrogate &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
                         }
@@ -624,7 +1589,7 @@ abstract class CPReader {
                     if (v == 0x2028) {
                         v = '\n';
                         line++;
-                        column = 1;
+                        linestart = bufoffset + pos;
                     } else if (v >= 0x7f && v <= 0x9f) {
                         throw new SAXParseException("Invalid XML 1.1 character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());
                     }
@@ -641,9 +1606,9 @@ abstract class CPReader {
                 // * any #xD character that is not immediately followed by #xA
                 if (v == '\n') {
                     line++;
-                    column = 1;
+                    linestart = bufoffset + pos;
                 } else if (v == '\r') {
-                    v = pos == len ? in.read() : buf[pos];
+                    v = pos >= len ? in.read() : buf[pos];
                     pos++;
                     if (xml11 && v == 0x85) {
                         v = '\n';
@@ -661,13 +1626,42 @@ abstract class CPReader {
                         v = '\n';
                     }
                     line++;
-                    column = 1;
+                    linestart = bufoffset + pos;
                 } else if (v != '\t' && v >= 0) {
                     throw new SAXParseException("Invalid character &#x" + Integer.toHexString(v) + ";", getPublicId(), getSystemId(), getLineNumber(), getColumnNumber());              
                 }
             }
             return v;
         }
+        @Override public int readRun(char[] out, int off, int max, Delimiters delims) {
+            final char[] buf = this.buf;
+            final int end = Math.min(len, pos + max);
+            int i = pos, line = this.line, linestart = this.linestart;
+            while (i < end) {
+                final char v = buf[i];
+                if (v < 0x80) {
+                    if (delims.table[v]) {
+                        break;
+                    } else if (v == '\n') {
+                        line++;
+                        linestart = bufoffset + i + 1;
+                    }
+                } else if (v >= 0xd800 && (v <= 0xdfff || v >= 0xfffe)) {
+                    break;
+                } else if (xml11 && (v <= 0x9f || v == 0x2028)) {
+                    break;
+                }
+                i++;
+            }
+            final int n = i - pos;
+            if (n > 0) {
+                System.arraycopy(buf, pos, out, off, n);
+                pos = i;
+                this.line = line;
+                this.linestart = linestart;
+            }
+            return n;
+        }
         @Override public void close() throws IOException {
             in.close();
         }
@@ -681,7 +1675,7 @@ abstract class CPReader {
             return line;
         }
         @Override public int getColumnNumber() {
-            return column;
+            return bufoffset + Math.max(pos, 0) - linestart + 1;
         }
         @Override public int getCharacterOffset() {
             return bufoffset + pos - 1;
@@ -0,0 +1,75 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.CharBuffer;
+
+/**
+ * A Reader that reads from a CharBuffer. The chars read are those
+ * between the position and the limit of the buffer when this Reader was
+ * created; the buffer's own position is not changed. If the buffer
+ * is backed by an array, CPReader will read directly from that
+ * array rather than through this Reader.
+ */
+class CharBufferReader extends Reader {
+
+    private final CharBuffer buf;
+
+    CharBufferReader(CharBuffer buf) {
+        this.buf = buf.duplicate();
+    }
+
+    /**
+     * Return the buffer this Reader reads from. Its position is the next char to read
+     */
+    CharBuffer getBuffer() {
+        return buf;
+    }
+
+    @Override public int read() {
+        return buf.hasRemaining() ? buf.get() : -1;
+    }
+
+    @Override public int read(char[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        } else if (!buf.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buf.remaining());
+        buf.get(b, off, len);
+        return len;
+    }
+
+    // Buffer methods are called through Buffer so this links against Java 8, where they aren't covariant
+
+    @Override public long skip(long n) {
+        n = Math.max(0, Math.min(n, buf.remaining()));
+        ((Buffer)buf).position(buf.position() + (int)n);
+        return n;
+    }
+
+    @Override public boolean ready() {
+        return true;
+    }
+
+    @Override public boolean markSupported() {
+        return true;
+    }
+
+    @Override public void mark(int limit) {
+        ((Buffer)buf).mark();
+    }
+
+    @Override public void reset() {
+        ((Buffer)buf).reset();
+    }
+
+    @Override public void close() {
+    }
+
+    @Override public String toString() {
+        return "{charbuffer " + buf + "}";
+    }
+
+}
@@ -129,15 +129,17 @@ class DirectQueue extends Queue {
         }
         errorHandler.fatalError(exception);
     }
-    @Override public void fatalError2(Exception exception) throws SAXException, IOException {
+    @Override public void fatalError2(Throwable exception) throws SAXException, IOException {
         if (exception instanceof IOException) {
             throw (IOException)exception;
         } else if (exception instanceof SAXException) {
             throw (SAXException)exception;
         } else if (exception instanceof RuntimeException) {
             throw (RuntimeException)exception;
+        } else if (exception instanceof Error) {
+            throw (Error)exception;
         } else {
-            throw new SAXException("Unhandled Exception", exception);
+            throw new SAXException("Unhandled Exception", (Exception)exception);
         }
     }
     @Override void xmlpi(String charset, String encoding, String standalone, String version) throws IOException, SAXException {
@@ -9,8 +9,12 @@ class Element {
     private Map<String,Attribute> atts = new HashMap<String,Attribute>();
     private String model;
     private boolean hasText, closed;
-    private Map<String,Attribute> defaultatts;
+    private List<Attribute> defaultlist;
     private String idattr;
+    // Set on close, for merging attributes in a start tag
+    private Attribute[] defaults;                       // the attributes with a default value, in declared order
+    private Map<String,Integer> defaultslots;           // qName to index in defaults
+    private Map<String,Attribute> tokenizedatts;        // the attributes whose values are normalized, as they're not CDATA
 
     Element(DTD dtd, String name, String model) {
         this.dtd = dtd;
@@ -38,8 +42,21 @@ class Element {
         if (!closed) {
             closed = true;
             atts = Collections.<String,Attribute>unmodifiableMap(atts);
-            if (defaultatts != null) {
-                defaultatts = Collections.<String,Attribute>unmodifiableMap(defaultatts);
+            if (defaultlist != null) {
+                defaults = defaultlist.toArray(new Attribute[defaultlist.size()]);
+                defaultlist = null;
+                defaultslots = new HashMap<String,Integer>();
+                for (int i=0;i<defaults.length;i++) {
+                    defaultslots.put(defaults[i].getQName(), i);
+                }
+            }
+            for (Attribute a : atts.values()) {
+                if (!"CDATA".equals(a.getType())) {
+                    if (tokenizedatts == null) {
+                        tokenizedatts = new HashMap<String,Attribute>();
+                    }
+                    tokenizedatts.put(a.getQName(), a);
+                }
             }
         }
     }
@@ -71,10 +88,10 @@ class Element {
         if (!atts.containsKey(name)) {
             atts.put(name, a);
             if (value != null) {
-                if (defaultatts == null) {
-                    defaultatts = new HashMap<String,Attribute>();
+                if (defaultlist == null) {
+                    defaultlist = new ArrayList<Attribute>();
                 }
-                defaultatts.put(name, a);
+                defaultlist.add(a);
             }
         }
     }
@@ -83,8 +100,30 @@ class Element {
         return atts;
     }
 
-    Map<String,Attribute> getAttributesWithDefaults() {
-        return defaultatts;
+    /**
+     * Return the attributes with a default value, in the order they were declared,
+     * or null if there are none. Only set once the element is closed
+     */
+    Attribute[] getDefaults() {
+        return defaults;
+    }
+
+    /**
+     * Return the index into {@link #getDefaults} of the attribute with the specified
+     * name, or -1 if it has no default value or isn't declared
+     */
+    int getDefaultSlot(String qName) {
+        Integer slot = defaultslots.get(qName);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Return the declared attributes which are not CDATA, and whose values must
+     * therefore be normalized, or null if there are none. Only set once the
+     * element is closed
+     */
+    Map<String,Attribute> getTokenizedAttributes() {
+        return tokenizedatts;
     }
 
 }
@@ -0,0 +1,200 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * An InputStream that inflates gzip-compressed input. Unlike GZIPInputStream
+ * it starts from bytes that have already been read from the stream, reads the
+ * compressed input in large blocks, and inflates straight into the array passed
+ * to {@link #read(byte[],int,int)} - for CPReader, the buffer it decodes from.
+ * Concatenated gzip members are read as one stream, and anything after the last
+ * member is ignored, as GZIPInputStream does.
+ */
+class GzipInputStream extends InputStream {
+
+    private static final int BUFFER = 65536;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    private final InputStream in;
+    private final int size;
+    private final Inflater inflater;
+    private final CRC32 crc;
+    private final byte[] single = new byte[1];    // for read()
+    private byte[] buf;         // the compressed input
+    private int pos, len;       // the part of buf not yet given to the inflater
+    private boolean owned;      // whether buf is ours to read into
+    private boolean eof;
+
+    /**
+     * Create a new GzipInputStream
+     * @param in the stream to read the rest of the compressed input from
+     * @param buf the start of the compressed input, which must begin with the gzip magic number. It's read in place
+     * @param off the offset into buf of the compressed input
+     * @param len the offset into buf of the end of the compressed input
+     * @param size the size of the blocks to read the compressed input in, or 0 for the default
+     */
+    GzipInputStream(InputStream in, byte[] buf, int off, int len, int size) throws IOException {
+        this.in = in;
+        this.size = size > 0 ? size : BUFFER;
+        this.buf = buf;
+        this.pos = off;
+        this.len = len;
+        this.inflater = new Inflater(true);
+        this.crc = new CRC32();
+        if (next() != 0x1f || next() != 0x8b) {
+            throw new ZipException("Not in GZIP format");
+        }
+        readHeader();
+    }
+
+    /**
+     * Return the next byte of the compressed input, or -1 at the end of it
+     */
+    private int next() throws IOException {
+        if (pos >= len && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private int next(String what) throws IOException {
+        final int v = next();
+        if (v < 0) {
+            throw new EOFException("Unexpected end of GZIP " + what);
+        }
+        return v;
+    }
+
+    /**
+     * Read more compressed input into buf
+     * @return false if there is no more
+     */
+    private boolean fill() throws IOException {
+        if (!owned) {
+            // The first bytes are given to us; after that we read into our own buffer
+            buf = new byte[size];
+            owned = true;
+        }
+        len = in.read(buf, 0, buf.length);
+        pos = 0;
+        if (len <= 0) {
+            len = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read a gzip header after the magic number, and prepare to inflate the data following it
+     */
+    private void readHeader() throws IOException {
+        if (next("header") != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        final int flags = next("header");
+        for (int i=0;i<6;i++) {
+            next("header");                             // MTIME, XFL, OS
+        }
+        if ((flags & FEXTRA) != 0) {
+            int n = next("header") | (next("header")<<8);
+            while (n-- > 0) {
+                next("header");
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            while (next("header") != 0);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (next("header") != 0);
+        }
+        if ((flags & FHCRC) != 0) {
+            next("header");
+            next("header");
+        }
+        inflater.reset();
+        crc.reset();
+        inflater.setInput(buf, pos, len - pos);
+        pos = len;
+    }
+
+    /**
+     * Check the trailer at the end of a member, and start the next member if there is one
+     * @return false if that was the last member
+     */
+    private boolean readTrailer() throws IOException {
+        pos = len - inflater.getRemaining();
+        long v = 0;
+        for (int i=0;i<8;i++) {
+            v |= (long)next("trailer") << (i * 8);
+        }
+        if ((v & 0xFFFFFFFFL) != crc.getValue()) {
+            throw new ZipException("Corrupt GZIP trailer");
+        } else if ((v >>> 32) != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+        if (next() == 0x1f && next() == 0x8b) {
+            readHeader();
+            return true;
+        }
+        return false;
+    }
+
+    @Override public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!eof) {
+            final int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage() != null ? e.getMessage() : "Invalid ZLIB data format");
+            }
+            if (n > 0) {
+                crc.update(b, off, n);
+                return n;
+            } else if (inflater.finished()) {
+                if (!readTrailer()) {
+                    end();
+                }
+            } else if (inflater.needsDictionary()) {
+                throw new ZipException("Invalid ZLIB data format");
+            } else if (inflater.needsInput()) {
+                if (!fill()) {
+                    throw new EOFException("Unexpected end of GZIP input");
+                }
+                inflater.setInput(buf, 0, this.len);
+                pos = this.len;
+            }
+        }
+        return -1;
+    }
+
+    @Override public int read() throws IOException {
+        final byte[] b = single;
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    /**
+     * Free the inflater without closing the stream being read, which the
+     * parser doesn't own. Any reads after this return -1. Called from the
+     * end of the parse, which may be on another thread to the reads.
+     */
+    synchronized void end() {
+        if (!eof) {
+            eof = true;
+            inflater.end();
+        }
+    }
+
+    @Override public void close() throws IOException {
+        end();
+        in.close();
+    }
+
+    @Override public String toString() {
+        return "{gzip " + in + "}";
+    }
+
+}
@@ -9,16 +9,6 @@ import org.xml.sax.InputSource;
  */
 class InputSourceURN extends InputSource {
 
-    private static final boolean JAVA9;
-    static {
-        boolean b = false;
-        try {
-            new ByteArrayInputStream(new byte[0]).readAllBytes();
-            b = true;
-        } catch (Throwable e) { }
-        JAVA9 = b;
-    }
-
     private String urn;
 
     InputSourceURN() {
@@ -87,25 +77,8 @@ class InputSourceURN extends InputSource {
                 if (in == null) {
                     throw new IllegalStateException("No stream");
                 }
-                byte[] buf;
-                int len;
-                if (JAVA9) {
-                    buf = in.readAllBytes();
-                    len = buf.length;
-                } else {
-                    if (!in.markSupported()) {
-                        in = new BufferedInputStream(in);
-                    }
-                    len = 0;
-                    int l;
-                    buf = new byte[Math.min(4096, in.available())];
-                    while ((l=in.read(buf, len, buf.length - len)) >= 0) {
-                        len += l;
-                        if (buf.length - len < 4096 ) {
-                            buf = Arrays.copyOf(buf, buf.length + (buf.length >> 1));
-                        }
-                    }
-                }
+                final byte[] buf = Platform.readAllBytes(in);
+                final int len = buf.length;
                 in.close();
                 hash.update(buf, 0, len);
                 setURN("urn:murmur3:" + hash.getValue128().toString(16));
@@ -0,0 +1,120 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An InputStream that reads a local file from a memory mapping, rather than
+ * making a system call for each block read. Files too large to map in one go
+ * are mapped a window at a time.
+ */
+class MappedInputStream extends InputStream {
+
+    private static final int WINDOW = 1<<30;
+    private static final long MINSIZE = 1<<16;          // below this, mapping costs more than it saves
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer map;
+    private long start;         // offset in the file of the start of map
+    private long mark;
+
+    private MappedInputStream(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW, size));
+    }
+
+    /**
+     * Return an InputStream reading from the specified file, mapped into
+     * memory if that's possible and worthwhile
+     * @param file the file
+     */
+    static InputStream open(File file) throws IOException {
+        if (file.length() >= MINSIZE) {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                return new MappedInputStream(channel);
+            } catch (IOException e) {
+                // Not every filesystem can be mapped; read it the usual way
+                channel.close();
+            }
+        }
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * Ensure there are bytes remaining in the current window,
+     * moving to the next one if necessary.
+     * @return false if we're at the end of the file
+     */
+    private boolean fill() throws IOException {
+        if (map.hasRemaining()) {
+            return true;
+        } else if (start + map.limit() >= size) {
+            return false;
+        }
+        seek(start + map.limit());
+        return true;
+    }
+
+    private void seek(long pos) throws IOException {
+        if (pos >= start && pos - start < map.limit()) {
+            ((Buffer)map).position((int)(pos - start));
+        } else {
+            start = pos;
+            map = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, size - start));
+        }
+    }
+
+    @Override public int read() throws IOException {
+        return fill() ? map.get() & 0xFF : -1;
+    }
+
+    @Override public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        } else if (!fill()) {
+            return -1;
+        }
+        len = Math.min(len, map.remaining());
+        map.get(buf, off, len);
+        return len;
+    }
+
+    @Override public long skip(long n) throws IOException {
+        long pos = start + map.position();
+        n = Math.max(0, Math.min(n, size - pos));
+        seek(pos + n);
+        return n;
+    }
+
+    @Override public int available() {
+        return map.remaining();
+    }
+
+    @Override public boolean markSupported() {
+        return true;
+    }
+
+    @Override public void mark(int limit) {
+        mark = start + map.position();
+    }
+
+    @Override public void reset() throws IOException {
+        seek(mark);
+    }
+
+    @Override public void close() throws IOException {
+        // The mapping itself is released when it's collected
+        channel.close();
+    }
+
+    @Override public String toString() {
+        return "{mapped size=" + size + " pos=" + (start + map.position()) + "}";
+    }
+
+}
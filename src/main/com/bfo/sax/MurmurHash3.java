@@ -4,7 +4,6 @@ import java.util.zip.*;
 import java.security.MessageDigest;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 /**
  * MurmurHash3-128-x64
@@ -55,14 +54,14 @@ class MurmurHash3 implements Checksum {
     }
 
     @Override public void update(byte[] data, int off, int len) {
-        ByteBuffer buffer = ByteBuffer.wrap(data, off, len);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        while (bc > 0 && buffer.remaining() > 0) {
-            update(buffer.get() & 0xFF);
+        final int end = off + len;
+        while (bc > 0 && off < end) {
+            update(data[off++] & 0xFF);
         }
-        while (buffer.remaining() >= 16) {
-            long k1 = buffer.getLong();
-            long k2 = buffer.getLong();
+        while (end - off >= 16) {
+            long k1 = Platform.getLongLE(data, off);
+            long k2 = Platform.getLongLE(data, off + 8);
+            off += 16;
             h1 ^= mixK1(k1);
             h1 = Long.rotateLeft(h1, 27);
             h1 += h2;
@@ -73,8 +72,8 @@ class MurmurHash3 implements Checksum {
             h2 = h2 * 5 + 0x38495ab5;
             length += 16;
         }
-        while (buffer.remaining() > 0) {
-            update(buffer.get() & 0xFF);
+        while (off < end) {
+            update(data[off++] & 0xFF);
         }
     }
 
@@ -0,0 +1,63 @@
+package com.bfo.sax;
+
+/**
+ * Tables for the NameStartChar and NameChar productions, which are the same in
+ * XML 1.0 (fifth edition) and XML 1.1. ASCII is tested against two constant
+ * bitmasks; the rest of the BMP against a bitmap of 8KB for each production.
+ * Every codepoint from 0x10000 to 0xEFFFF is a name character.
+ */
+final class NameChars {
+
+    // NameStartChar, as pairs of first and last codepoint in the BMP
+    private static final int[] NAMESTART = {
+        ':', ':', 'A', 'Z', '_', '_', 'a', 'z', 0xC0, 0xD6, 0xD8, 0xF6, 0xF8, 0x2FF, 0x370, 0x37D,
+        0x37F, 0x1FFF, 0x200C, 0x200D, 0x2070, 0x218F, 0x2C00, 0x2FEF, 0x3001, 0xD7FF, 0xF900, 0xFDCF,
+        0xFDF0, 0xFFFD
+    };
+    // NameChar, in addition to NameStartChar
+    private static final int[] NAME = {
+        '-', '.', '0', '9', 0xB7, 0xB7, 0x300, 0x36F, 0x203F, 0x2040
+    };
+
+    private static final long[] STARTBITS = new long[1024], NAMEBITS = new long[1024];
+    private static final long STARTLO, STARTHI, NAMELO, NAMEHI;
+    static {
+        set(STARTBITS, NAMESTART);
+        set(NAMEBITS, NAMESTART);
+        set(NAMEBITS, NAME);
+        STARTLO = STARTBITS[0];
+        STARTHI = STARTBITS[1];
+        NAMELO = NAMEBITS[0];
+        NAMEHI = NAMEBITS[1];
+    }
+
+    private NameChars() {
+    }
+
+    private static void set(long[] bits, int[] ranges) {
+        for (int i=0;i<ranges.length;i+=2) {
+            for (int c=ranges[i];c<=ranges[i + 1];c++) {
+                bits[c>>>6] |= 1L << c;
+            }
+        }
+    }
+
+    static boolean isNameStartChar(int c) {
+        if (c < 0x80) {
+            return c >= 0 && ((c < 0x40 ? STARTLO : STARTHI) & (1L << c)) != 0;
+        } else if (c <= 0xFFFF) {
+            return (STARTBITS[c>>>6] & (1L << c)) != 0;
+        }
+        return c <= 0xEFFFF;
+    }
+
+    static boolean isNameChar(int c) {
+        if (c < 0x80) {
+            return c >= 0 && ((c < 0x40 ? NAMELO : NAMEHI) & (1L << c)) != 0;
+        } else if (c <= 0xFFFF) {
+            return (NAMEBITS[c>>>6] & (1L << c)) != 0;
+        }
+        return c <= 0xEFFFF;
+    }
+
+}
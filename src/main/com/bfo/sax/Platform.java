@@ -0,0 +1,52 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Methods whose best implementation depends on the version of Java. This is
+ * the Java 8 version; the Jar is multi-release, and the version of this class
+ * in src/main9 replaces it on Java 9 or later. Both must have the same methods.
+ */
+final class Platform {
+
+    // The most readAllBytes allocates before any bytes are read. available() may
+    // give the size of a whole mapped file, or more than will ever be read
+    private static final int MAXINITIAL = 1<<20;
+
+    private Platform() {
+    }
+
+    /**
+     * Read the rest of the stream and return it, without closing it
+     * @param in the stream
+     */
+    static byte[] readAllBytes(InputStream in) throws IOException {
+        byte[] buf = new byte[Math.max(4096, Math.min(in.available(), MAXINITIAL) + 1)];
+        int len = 0, l;
+        while ((l=in.read(buf, len, buf.length - len)) >= 0) {
+            len += l;
+            if (len == buf.length) {
+                buf = Arrays.copyOf(buf, len + (len >> 1));
+            }
+        }
+        return len == buf.length ? buf : Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * Return the little-endian long at the specified offset of an array
+     * @param buf the array
+     * @param off the offset of the lowest byte
+     */
+    static long getLongLE(byte[] buf, int off) {
+        return (buf[off] & 0xFFL)
+            | (buf[off + 1] & 0xFFL) << 8
+            | (buf[off + 2] & 0xFFL) << 16
+            | (buf[off + 3] & 0xFFL) << 24
+            | (buf[off + 4] & 0xFFL) << 32
+            | (buf[off + 5] & 0xFFL) << 40
+            | (buf[off + 6] & 0xFFL) << 48
+            | (buf[off + 7] & 0xFFL) << 56;
+    }
+
+}
@@ -42,7 +42,7 @@ abstract class Queue implements ContentHandler, LexicalHandler, DTDHandler, Erro
     final boolean isEntityResolver2() {
        return entityResolver instanceof EntityResolver2;
     }
-    abstract void fatalError2(Exception e) throws IOException, SAXException;
+    abstract void fatalError2(Throwable e) throws IOException, SAXException;
 
     abstract void xmlpi(String charset, String encoding, String standalone, String version) throws IOException, SAXException;
 
@@ -0,0 +1,117 @@
+package com.bfo.sax;
+
+import java.io.*;
+
+/**
+ * An InputStream which reads another InputStream on its own thread into a
+ * ring of buffers, so the next read from the input is under way while the
+ * bytes already read are being parsed. Anything thrown reading the other
+ * stream is thrown from this one once all the bytes read before it have been
+ * read.
+ */
+class ReadAheadInputStream extends InputStream implements BlockRing.Filler<ReadAheadInputStream.Block> {
+
+    private final InputStream in;
+    private final BlockRing<Block> ring;
+
+    // Read by the parsing thread only
+    private Block block;
+    private int pos;
+
+    static class Block extends BlockRing.Block {
+        final byte[] buf;
+        int len;        // -1 at the end of the input
+        Block(int size) {
+            buf = new byte[size];
+        }
+    }
+
+    /**
+     * Create a new ReadAheadInputStream and start reading
+     * @param in the stream to read, which must not be read from again other than by this object
+     * @param buffers the number of buffers that may be read ahead
+     * @param size the size of each buffer
+     */
+    ReadAheadInputStream(InputStream in, int buffers, int size) {
+        this.in = in;
+        // One more than requested, as one is always being read from
+        Block[] q = new Block[buffers + 1];
+        for (int i=0;i<q.length;i++) {
+            q[i] = new Block(size);
+        }
+        this.ring = new BlockRing<Block>(q, this, "bfosax-readahead");
+    }
+
+    /**
+     * Called on the reading thread to fill the next buffer
+     */
+    @Override public void fill(Block b) throws IOException {
+        b.len = -1;
+        b.len = in.read(b.buf);
+        b.last = b.len < 0;
+    }
+
+    /**
+     * Ensure there are bytes remaining in the current buffer,
+     * waiting for the next one if necessary.
+     * @return false if we're at the end of the input
+     */
+    private boolean more() throws IOException {
+        while (block == null || pos >= block.len) {
+            if (block != null && block.last) {
+                final Throwable e = block.error;
+                if (e instanceof IOException) {
+                    throw (IOException)e;
+                } else if (e instanceof RuntimeException) {
+                    throw (RuntimeException)e;
+                } else if (e instanceof Error) {
+                    throw (Error)e;
+                } else if (e != null) {
+                    throw new IOException(e);
+                }
+                return false;
+            }
+            block = ring.next();
+            pos = 0;
+        }
+        return true;
+    }
+
+    @Override public int read() throws IOException {
+        return more() ? block.buf[pos++] & 0xFF : -1;
+    }
+
+    @Override public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        } else if (!more()) {
+            return -1;
+        }
+        len = Math.min(len, block.len - pos);
+        System.arraycopy(block.buf, pos, buf, off, len);
+        pos += len;
+        return len;
+    }
+
+    @Override public int available() {
+        return block == null ? 0 : Math.max(0, block.len - pos);
+    }
+
+    /**
+     * Stop the reading thread once it's finished with the current read, and
+     * wait for it to exit, without closing the stream being read.
+     */
+    void stop() {
+        ring.stop();
+    }
+
+    @Override public void close() throws IOException {
+        stop();
+        in.close();
+    }
+
+    @Override public String toString() {
+        return "{readahead " + in + "}";
+    }
+
+}
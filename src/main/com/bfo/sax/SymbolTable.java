@@ -0,0 +1,180 @@
+package com.bfo.sax;
+
+/**
+ * A table of names, so a name that has been seen before can be returned from the
+ * parse buffer without creating a new String. Each factory has one shared by all
+ * its parsers, and each parser has one of its own for the names of the current
+ * parse that don't go in the factory's. Names are hashed as they're read, with
+ * the same function as String.hashCode().
+ *
+ * Lookups don't lock: the table is only added to until it's cleared, and a String
+ * is safe to read from another thread without synchronization. Adding a name
+ * checks again under the lock, in case it raced with another addition. No name
+ * is more than MAXPROBE slots from where its hash puts it, so names with
+ * colliding hashes can't make lookups slow; those that don't fit, and any names
+ * once the table is full, aren't added.
+ */
+final class SymbolTable {
+
+    private static final int MAXSIZE = 8192;
+    private static final int MAXPROBE = 8;
+
+    private volatile String[] table;
+    private int size;
+
+    SymbolTable() {
+        table = new String[256];
+    }
+
+    /**
+     * Continue a hash for a codepoint, as String.hashCode() would for its chars
+     * @param h the hash of the chars so far
+     * @param c the codepoint
+     */
+    static int hash(int h, int c) {
+        if (c > 0xffff) {
+            final int u = CPReader.toUTF16(c);
+            return 31 * (31 * h + (u>>>16)) + (u & 0xffff);
+        }
+        return 31 * h + c;
+    }
+
+    /**
+     * Return the hash of part of a String, as {@link #hash(int,int)} would give for its chars
+     */
+    static int hash(String name, int start, int end) {
+        int hash = 0;
+        for (int i=start;i<end;i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Return the String in the table for a range of chars, or null if it's not there
+     * @param buf the buffer
+     * @param start the start of the name
+     * @param end the end of the name
+     * @param hash the hash of the name, as from {@link #hash(int,int)}
+     */
+    String get(char[] buf, int start, int end, int hash) {
+        final String[] table = this.table;
+        final int mask = table.length - 1;
+        final int len = end - start;
+        String s;
+        for (int i=spread(hash) & mask, n=0;n < MAXPROBE && (s=table[i]) != null;i=(i+1) & mask, n++) {
+            if (s.hashCode() == hash && s.length() == len && matches(s, buf, start, len)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the String in the table for part of a String, such as the prefix or local
+     * part of a qualified name, or null if it's not there
+     * @param name the String
+     * @param start the start of the part
+     * @param end the end of the part
+     * @param hash the hash of the part, as from {@link #hash(String,int,int)}
+     */
+    String get(String name, int start, int end, int hash) {
+        final String[] table = this.table;
+        final int mask = table.length - 1;
+        final int len = end - start;
+        String s;
+        for (int i=spread(hash) & mask, n=0;n < MAXPROBE && (s=table[i]) != null;i=(i+1) & mask, n++) {
+            if (s.hashCode() == hash && s.length() == len && name.regionMatches(start, s, 0, len)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String s, char[] buf, int start, int len) {
+        for (int i=0;i<len;i++) {
+            if (s.charAt(i) != buf[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a String to the table, unless it's already there
+     * @param name the name
+     * @param hash its hash
+     * @return the String in the table, or null if the table is full or there's no
+     * room near where the hash puts it
+     */
+    synchronized String add(String name, int hash) {
+        String[] table = this.table;
+        final int mask = table.length - 1;
+        int i = spread(hash) & mask, n = 0;
+        String s;
+        while ((s=table[i]) != null) {
+            if (s.hashCode() == hash && s.equals(name)) {
+                return s;
+            } else if (++n == MAXPROBE) {
+                return null;
+            }
+            i = (i+1) & mask;
+        }
+        if (size == MAXSIZE) {
+            return null;
+        }
+        size++;
+        if (size * 2 > table.length) {
+            // Keep it at most half full, so misses are short. A name now too far from
+            // where its hash puts it is dropped; it'll be added again if there's room
+            final String[] table2 = new String[table.length * 2];
+            size = 0;
+            for (String t : table) {
+                if (t != null && put(table2, t)) {
+                    size++;
+                }
+            }
+            if (put(table2, name)) {
+                size++;
+            } else {
+                name = null;
+            }
+            this.table = table2;
+        } else {
+            table[i] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Put a String in an empty slot of a table being rebuilt
+     * @return false if there's no room for it near where its hash puts it
+     */
+    private static boolean put(String[] table, String name) {
+        final int mask = table.length - 1;
+        int i = spread(name.hashCode()) & mask;
+        for (int n=0;table[i] != null;n++) {
+            if (n + 1 == MAXPROBE) {
+                return false;
+            }
+            i = (i+1) & mask;
+        }
+        table[i] = name;
+        return true;
+    }
+
+    /**
+     * Empty the table
+     */
+    synchronized void clear() {
+        if (size > 0) {
+            table = new String[256];
+            size = 0;
+        }
+    }
+
+}
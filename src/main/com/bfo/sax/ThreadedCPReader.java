@@ -0,0 +1,187 @@
+package com.bfo.sax;
+
+import java.io.*;
+import org.xml.sax.*;
+
+/**
+ * A CPReader which decodes another CPReader on its own thread, ahead of the
+ * tokenizer. The other reader does the I/O, charset decoding, line-end
+ * normalization and character checks, and its output is passed over in
+ * blocks of chars through a small ring, so the two threads only meet once
+ * per block. An error found while decoding is thrown from this reader once
+ * all the text before it has been read.
+ *
+ * The character offset isn't available from this reader.
+ */
+class ThreadedCPReader extends CPReader implements BlockRing.Filler<ThreadedCPReader.Block> {
+
+    private static final int BLOCK = 16384;
+    private static final Delimiters NONE = delimiters("");
+
+    private final CPReader reader;
+    private final BlockRing<Block> ring;
+
+    // Read by the tokenizer thread only
+    private Block block;
+    private char[] buf;
+    private int pos, len;
+    private int line, linestart, bufoffset;         // linestart as for UTF8CPReader
+
+    static class Block extends BlockRing.Block {
+        final char[] buf = new char[BLOCK];
+        int len;
+    }
+
+    /**
+     * Create a new ThreadedCPReader and start decoding
+     * @param reader the reader to decode, which must not be read from again other than by this object
+     */
+    ThreadedCPReader(CPReader reader) {
+        this.reader = reader;
+        this.line = reader.getLineNumber();
+        this.linestart = 1 - reader.getColumnNumber();
+        Block[] q = new Block[4];
+        for (int i=0;i<q.length;i++) {
+            q[i] = new Block();
+        }
+        this.ring = new BlockRing<Block>(q, this, "bfosax-decode");
+    }
+
+    /**
+     * Called on the decoding thread to fill the next block
+     */
+    @Override public void fill(Block b) throws SAXException, IOException {
+        final char[] buf = b.buf;
+        int n = 0;
+        try {
+            // Leave room at the end for a surrogate pair
+            while (n < BLOCK - 1) {
+                n += reader.readRun(buf, n, BLOCK - 1 - n, NONE);
+                if (n < BLOCK - 1) {
+                    final int v = reader.read();
+                    if (v < 0) {
+                        b.last = true;
+                        break;
+                    } else if (v > 0xffff) {
+                        final int u = toUTF16(v);
+                        buf[n++] = (char)(u>>16);
+                        buf[n++] = (char)u;
+                    } else {
+                        buf[n++] = (char)v;
+                    }
+                }
+            }
+        } finally {
+            // Text before an error is still passed on
+            b.len = n;
+        }
+    }
+
+    /**
+     * Move to the next decoded block, waiting for it if necessary.
+     * @return false if the input is finished
+     */
+    private boolean next() throws SAXException, IOException {
+        if (block != null && block.last) {
+            final Throwable e = block.error;
+            if (e instanceof SAXException) {
+                throw (SAXException)e;
+            } else if (e instanceof IOException) {
+                throw (IOException)e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException)e;
+            } else if (e instanceof Error) {
+                throw (Error)e;
+            } else if (e != null) {
+                throw (SAXException)new SAXException().initCause(e);
+            }
+            return false;
+        }
+        block = ring.next();
+        bufoffset += len;
+        buf = block.buf;
+        len = block.len;
+        pos = 0;
+        return len > 0 || next();
+    }
+
+    @Override public int read() throws SAXException, IOException {
+        if (pos >= len && !next()) {
+            return -1;
+        }
+        int v = buf[pos++];
+        if (v == '\n') {
+            line++;
+            linestart = bufoffset + pos;
+        } else if (v >= 0xd800 && v <= 0xdfff) {
+            // Only ever written as a pair from one codepoint, never split across blocks
+            v = fromUTF16(v, buf[pos++]);
+            linestart++;
+        }
+        return v;
+    }
+
+    @Override public int readRun(char[] out, int off, int max, Delimiters delims) {
+        final char[] buf = this.buf;
+        final int end = Math.min(len, pos + max);
+        int i = pos, line = this.line, linestart = this.linestart;
+        while (i < end) {
+            final char v = buf[i];
+            if (v < 0x80) {
+                if (delims.table[v]) {
+                    break;
+                } else if (v == '\n') {
+                    line++;
+                    linestart = bufoffset + i + 1;
+                }
+            } else if (v >= 0xd800 && v <= 0xdfff) {
+                break;
+            }
+            i++;
+        }
+        final int n = i - pos;
+        if (n > 0) {
+            System.arraycopy(buf, pos, out, off, n);
+            pos = i;
+            this.line = line;
+            this.linestart = linestart;
+        }
+        return n;
+    }
+
+    /**
+     * Stop the decoding thread once it's finished with the current block, and
+     * wait for it to exit, without closing the reader being decoded.
+     */
+    void stop() {
+        ring.stop();
+    }
+
+    @Override public void close() throws IOException {
+        stop();
+        reader.close();
+    }
+    @Override public int getLineNumber() {
+        return line;
+    }
+    @Override public int getColumnNumber() {
+        return bufoffset + pos - linestart + 1;
+    }
+    @Override public String getPublicId() {
+        return reader.getPublicId();
+    }
+    @Override public String getSystemId() {
+        return reader.getSystemId();
+    }
+    @Override public String getEncoding() {
+        return reader.getEncoding();
+    }
+    @Override public boolean isXML11() {
+        return reader.isXML11();
+    }
+    @Override public String toString() {
+        // as the reader being decoded, so messages are the same either way
+        return reader.toString();
+    }
+
+}
@@ -147,9 +147,9 @@ class ThreadedQueue extends Queue {
         now(MsgType.fatalError, a1);
         throw a1;       // Won't get this far, because fail will be set.
     }
-    @Override public void fatalError2(Exception a1) throws IOException, SAXException {
+    @Override public void fatalError2(Throwable a1) throws IOException, SAXException {
         now(MsgType.fatalError, a1);
-        throw new SAXException("Unhandled Exception", a1);       // Won't get this far, because fail will be set.
+        throw new SAXException("Unhandled Exception", (Exception)a1);       // Won't get this far, because fail will be set.
     }
     @Override public void setDocumentLocator(Locator locator) {
         this.locator = (Location)locator;
@@ -453,6 +453,8 @@ class ThreadedQueue extends Queue {
                             throw (IOException)o[0];
                         } else if (o[0] instanceof RuntimeException) {
                             throw (RuntimeException)o[0];
+                        } else if (o[0] instanceof Error) {
+                            throw (Error)o[0];
                         } else {
                             throw new SAXException("Unhandled Exception", (Exception)o[0]);
                         }
@@ -0,0 +1,29 @@
+package com.bfo.sax;
+
+/**
+ * Copies long runs of plain ASCII bytes with the Vector API, if the
+ * jdk.incubator.vector module has been added to the JVM. This class must not
+ * refer to the API itself, so it still loads when the module is missing; that's
+ * left to VectorAsciiRuns.
+ */
+final class AsciiRuns {
+
+    static final boolean ENABLED;
+    static {
+        boolean b = false;
+        try {
+            b = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() && VectorAsciiRuns.isSupported();
+        } catch (Throwable e) {
+            // Not there, or unusable; the scalar scan will do
+        }
+        ENABLED = b;
+    }
+
+    private AsciiRuns() {
+    }
+
+    static int copy(byte[] buf, int pos, int len, char[] out, int o, int end, byte d0, byte d1, byte d2) {
+        return VectorAsciiRuns.copy(buf, pos, len, out, o, end, d0, d1, d2);
+    }
+
+}
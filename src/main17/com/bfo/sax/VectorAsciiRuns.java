@@ -0,0 +1,49 @@
+package com.bfo.sax;
+
+import jdk.incubator.vector.*;
+
+/**
+ * The Vector API implementation of {@link AsciiRuns}, scanning 32 bytes at a time.
+ */
+final class VectorAsciiRuns {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_256;
+
+    private VectorAsciiRuns() {
+    }
+
+    /**
+     * Return true if the hardware has vectors of at least 256 bits. If
+     * not they'd be emulated, which is far slower than scanning a word at a time
+     */
+    static boolean isSupported() {
+        return ByteVector.SPECIES_PREFERRED.vectorBitSize() >= SPECIES.vectorBitSize();
+    }
+
+    static int copy(byte[] buf, int pos, int len, char[] out, int o, int end, byte d0, byte d1, byte d2) {
+        final int n = SPECIES.length();
+        final int limit = Math.min(len, pos + end - o);
+        int i = pos;
+        while (i + n <= limit) {
+            final ByteVector v = ByteVector.fromArray(SPECIES, buf, i);
+            // Bytes are signed, so anything non-ASCII is below 0x20 too
+            final VectorMask<Byte> m = v.compare(VectorOperators.LT, (byte)0x20)
+                .or(v.compare(VectorOperators.EQ, (byte)0x7f))
+                .or(v.compare(VectorOperators.EQ, d0))
+                .or(v.compare(VectorOperators.EQ, d1))
+                .or(v.compare(VectorOperators.EQ, d2));
+            // firstTrue() is far slower than anyTrue(), so only used on the last vector
+            if (m.anyTrue()) {
+                i += m.firstTrue();
+                break;
+            }
+            i += n;
+        }
+        // The JIT vectorizes this copy itself
+        for (int j=pos;j<i;j++) {
+            out[o + j - pos] = (char)buf[j];
+        }
+        return i - pos;
+    }
+
+}
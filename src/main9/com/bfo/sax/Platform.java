@@ -0,0 +1,27 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Methods whose best implementation depends on the version of Java.
+ * This is the Java 9 version, see src/main for the Java 8 one.
+ */
+final class Platform {
+
+    private static final VarHandle LONGLE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private Platform() {
+    }
+
+    static byte[] readAllBytes(InputStream in) throws IOException {
+        return in.readAllBytes();
+    }
+
+    static long getLongLE(byte[] buf, int off) {
+        return (long)LONGLE.get(buf, off);
+    }
+
+}
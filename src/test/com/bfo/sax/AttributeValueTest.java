@@ -0,0 +1,150 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.xml.parsers.*;
+import org.xml.sax.*;
+import org.xml.sax.helpers.*;
+
+/**
+ * Check that attribute values left in the parser's buffer are still right
+ * when they're read late: on the other side of the threaded queue, once the
+ * parser has had time to run ahead, and again once the parse has ended.
+ * Small input buffers make the parser move to a new buffer every few start
+ * tags, and grow its buffer in the middle of long values.
+ */
+public class AttributeValueTest {
+
+    private static final int ELEMENTS = 3000;
+
+    /**
+     * A stream that counts the bytes read from it, so the handler can tell
+     * whether the parser has read on while it waited
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        final AtomicLong count = new AtomicLong();
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        @Override public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) {
+                count.incrementAndGet();
+            }
+            return c;
+        }
+        @Override public int read(byte[] buf, int off, int len) throws IOException {
+            len = super.read(buf, off, len);
+            if (len > 0) {
+                count.addAndGet(len);
+            }
+            return len;
+        }
+    }
+
+    private static final String[] PIECES = { "a", "b", "<", "&", "\u00e9", "\u20ac", "\ud834\udd1e", "\t", " " };
+
+    /**
+     * Return the markup for attribute j of element i, with its value as it
+     * should be reported in value[0]. Some are long enough for the buffer to
+     * grow while they're read
+     */
+    private static String attribute(Random random, int i, int j, String[] value) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder v = new StringBuilder();
+        sb.append(" a").append(j).append("=\"").append(i).append('.').append(j);
+        v.append(i).append('.').append(j);
+        int n = random.nextInt(random.nextInt(8) == 0 ? 200 : 12);
+        for (int k=0;k<n;k++) {
+            String s = PIECES[random.nextInt(PIECES.length)];
+            v.append(s.equals("\t") ? " " : s);
+            sb.append(s.equals("&") ? "&amp;" : s.equals("<") ? "&lt;" : s.equals("\u20ac") ? "&#x20ac;" : s);
+        }
+        value[0] = v.toString();
+        return sb.append('"').toString();
+    }
+
+    private static int count;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(24);
+        final List<String[]> expected = new ArrayList<String[]>();
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i=0;i<ELEMENTS;i++) {
+            String[] values = new String[random.nextInt(13)];
+            sb.append("<e");
+            String[] value = new String[1];
+            for (int j=0;j<values.length;j++) {
+                sb.append(attribute(random, i, j, value));
+                values[j] = value[0];
+            }
+            sb.append(i % 5 == 0 ? "/>" : ">text " + i + "</e>");
+            expected.add(values);
+        }
+        final byte[] doc = sb.append("</root>").toString().getBytes("UTF-8");
+
+        for (int mode=0;mode<4;mode++) {
+            for (int bufsize : new int[] { 0, 16, 17 }) {
+                final boolean threads = (mode & 1) != 0;
+                final String desc = "threads=" + threads + " decode-thread=" + ((mode & 2) != 0) + " input-buffer-size=" + bufsize;
+                SAXParserFactory factory = new BFOSAXParserFactory();
+                factory.setNamespaceAware(true);
+                factory.setFeature(BFOSAXParserFactory.FEATURE_THREADS, threads);
+                factory.setFeature(BFOSAXParserFactory.FEATURE_DECODE_THREAD, (mode & 2) != 0);
+                factory.setFeature(BFOSAXParserFactory.FEATURE_LAZY_ATTRIBUTE_VALUES, true);
+                XMLReader reader = factory.newSAXParser().getXMLReader();
+                reader.setProperty("http://apache.org/xml/properties/input-buffer-size", bufsize);
+                final CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(doc));
+                final List<Attributes> kept = new ArrayList<Attributes>();
+                final boolean[] ranAhead = new boolean[1];
+                reader.setContentHandler(new DefaultHandler() {
+                    @Override public void startElement(String uri, String localName, String qName, Attributes atts) {
+                        if (qName.equals("e")) {
+                            final int i = kept.size();
+                            if (i % 300 == 0) {
+                                // Give the parser time to run ahead before reading this element's values
+                                final long read = in.count.get();
+                                try {
+                                    Thread.sleep(20);
+                                } catch (InterruptedException e) { }
+                                ranAhead[0] |= in.count.get() > read;
+                            }
+                            if (i % 2 == 0) {
+                                check(atts, expected.get(i), desc + " element " + i);
+                            }
+                            kept.add(atts);
+                        }
+                    }
+                });
+                reader.parse(new InputSource(in));
+                if (threads && !ranAhead[0]) {
+                    throw new IllegalStateException(desc + ": parser never ran ahead of the handler");
+                }
+                if (threads) {
+                    // Each element has its own Attributes with the threaded queue, and their
+                    // values stay valid once the parse has ended
+                    for (int i=0;i<ELEMENTS;i++) {
+                        check(kept.get(i), expected.get(i), desc + " element " + i + " after the parse");
+                    }
+                }
+                count++;
+            }
+        }
+        System.out.println("AttributeValueTest: " + count + " passed");
+    }
+
+    private static void check(Attributes atts, String[] values, String desc) {
+        if (atts.getLength() != values.length) {
+            throw new IllegalStateException(desc + ": expected " + values.length + " attributes, got " + atts);
+        }
+        for (int j=0;j<values.length;j++) {
+            // Read by name first, then by index, so either may be the first read
+            String v = j % 2 == 0 ? atts.getValue("a" + j) : atts.getValue(j);
+            if (!values[j].equals(v) || !values[j].equals(atts.getValue(j)) || !values[j].equals(atts.getValue("", "a" + j))) {
+                throw new IllegalStateException(desc + ": a" + j + " expected \"" + values[j] + "\", got \"" + v + "\"");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.parsers.*;
+import org.xml.sax.*;
+import org.xml.sax.helpers.*;
+
+/**
+ * Check the Attributes passed to startElement on either side of the number
+ * of attributes at which they're indexed: lookups by qName and by URI and
+ * localName, duplicate attributes, the removal of namespace declarations,
+ * and reuse of the same object for a narrower element after a wider one.
+ */
+public class BFOAttributesTest {
+
+    private static final int[] WIDTHS = { 0, 1, 7, 8, 9, 10, 16, 17, 40 };
+
+    private static int count;
+
+    /**
+     * Records each element's attributes as a String, checking that every
+     * lookup agrees with the attribute's index
+     */
+    private static class Recorder extends DefaultHandler {
+        final StringBuilder sb = new StringBuilder();
+        @Override public void startElement(String uri, String localName, String qName, Attributes atts) {
+            sb.append("S ").append(qName);
+            for (int i=0;i<atts.getLength();i++) {
+                final String q = atts.getQName(i), u = atts.getURI(i), l = atts.getLocalName(i), v = atts.getValue(i);
+                sb.append(" {").append(u).append('}').append(l).append('|').append(q).append('=').append(v);
+                check(atts.getIndex(q) == i, qName + ": getIndex(\"" + q + "\") != " + i + " in " + atts);
+                check(atts.getIndex(u, l) == i, qName + ": getIndex(\"" + u + "\", \"" + l + "\") != " + i + " in " + atts);
+                check(v.equals(atts.getValue(q)), qName + ": getValue(\"" + q + "\") in " + atts);
+                check(v.equals(atts.getValue(u, l)), qName + ": getValue(\"" + u + "\", \"" + l + "\") in " + atts);
+                check(atts.getType(i).equals(atts.getType(q)), qName + ": getType(\"" + q + "\") in " + atts);
+            }
+            for (String q : new String[] { "missing", "a0", "p:a1", "xmlns", "xmlns:p" }) {
+                if (atts.getIndex(q) < 0) {
+                    check(atts.getValue(q) == null && atts.getType(q) == null, qName + ": getValue(\"" + q + "\") not null in " + atts);
+                }
+            }
+            check(atts.getIndex("urn:p", "missing") < 0 && atts.getValue("", "missing") == null, qName + ": missing name found in " + atts);
+            check(atts.getValue(atts.getLength()) == null && atts.getQName(-1) == null, qName + ": index out of range in " + atts);
+            sb.append('\n');
+        }
+    }
+
+    private static void check(boolean test, String message) {
+        if (!test) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * Return an element with "width" attributes. Every third is prefixed
+     * if "ns" is set, with the prefix declared among them
+     */
+    private static String element(String name, int width, boolean ns) {
+        StringBuilder sb = new StringBuilder("<" + name);
+        for (int i=0;i<width;i++) {
+            if (ns && i == width / 2) {
+                sb.append(" xmlns:p=\"urn:p\" xmlns=\"urn:default\"");
+            }
+            sb.append(ns && i % 3 == 1 ? " p:a" : " a").append(i).append("=\"v").append(i).append(i % 4 == 0 ? " &amp; &#x41;" : "").append('"');
+        }
+        return sb.append("/>").toString();
+    }
+
+    /**
+     * Parse with each factory and compare the attributes reported, or that
+     * both failed
+     */
+    private static void compare(String doc, SAXParserFactory jdk, List<SAXParserFactory> factories, String desc) throws Exception {
+        String expected = parse(jdk, doc);
+        for (SAXParserFactory factory : factories) {
+            String actual = parse(factory, doc);
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException(desc + " with " + factory + ": expected\n" + expected + "got\n" + actual);
+            }
+            count++;
+        }
+    }
+
+    private static String parse(SAXParserFactory factory, String doc) throws Exception {
+        Recorder recorder = new Recorder();
+        try {
+            factory.newSAXParser().parse(new InputSource(new StringReader(doc)), recorder);
+        } catch (SAXParseException e) {
+            recorder.sb.append("ERROR\n");
+        }
+        return recorder.sb.toString();
+    }
+
+    /**
+     * Use a BFOAttributes directly, as the parser does: add, name, remove and
+     * compact, then clear and reuse it
+     */
+    private static void direct() {
+        BFOAttributes atts = new BFOAttributes();
+        char[] buf = "0123456789".toCharArray();
+        for (int width : WIDTHS) {
+            atts.clear();
+            for (int i=0;i<width;i++) {
+                check(atts.getIndex("a" + i) < 0, width + ": a" + i + " found before it was added");
+                if (i % 2 == 0) {
+                    atts.add("a" + i, "v" + i, true);
+                } else {
+                    atts.add("a" + i, i % 10, 10, true);
+                }
+                if (i % 5 == 0) {
+                    atts.add("xmlns:n" + i, "urn:n" + i, true);
+                }
+            }
+            atts.setBuffer(buf);
+            for (int i=0;i<atts.getLength();i++) {
+                if (atts.getQName(i).startsWith("xmlns:")) {
+                    atts.remove(i);
+                }
+            }
+            atts.compact();
+            check(atts.getLength() == width, width + ": length " + atts.getLength() + " after compact");
+            for (int i=0;i<width;i++) {
+                final String value = i % 2 == 0 ? "v" + i : new String(buf, i % 10, 10 - i % 10);
+                check(atts.getQName(i).equals("a" + i) && atts.getIndex("a" + i) == i, width + ": a" + i + " not at " + i + " after compact");
+                check(atts.getValue("a" + i).equals(value), width + ": a" + i + " value " + atts.getValue("a" + i));
+                check(atts.getIndex("xmlns:n" + i) < 0, width + ": xmlns:n" + i + " found after compact");
+                check(atts.setName(i, i % 3 == 0 ? "urn:x" : "", "a" + i) < 0, width + ": a" + i + " reported as a duplicate");
+            }
+            for (int i=0;i<width;i++) {
+                check(atts.getIndex(i % 3 == 0 ? "urn:x" : "", "a" + i) == i, width + ": {}a" + i + " not at " + i);
+                check(atts.getIndex(i % 3 == 0 ? "" : "urn:x", "a" + i) < 0, width + ": {}a" + i + " found with the wrong URI");
+            }
+            count++;
+        }
+        // A duplicate URI and localName is found whichever position it's named at
+        for (int width : WIDTHS) {
+            for (int dup=1;dup<width;dup++) {
+                atts.clear();
+                for (int i=0;i<width;i++) {
+                    atts.add("p" + i + ":a" + (i == dup ? 0 : i), "v", true);
+                }
+                for (int i=0;i<width;i++) {
+                    int found = atts.setName(i, "urn:p", "a" + (i == dup ? 0 : i));
+                    check(found == (i == dup ? 0 : -1), width + ": naming " + i + " with duplicate at " + dup + " gave " + found);
+                }
+            }
+            count++;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        direct();
+
+        SAXParserFactory jdk = SAXParserFactory.newDefaultInstance();
+        jdk.setNamespaceAware(true);
+        List<SAXParserFactory> factories = new ArrayList<SAXParserFactory>();
+        for (int mode=0;mode<4;mode++) {
+            SAXParserFactory factory = new BFOSAXParserFactory();
+            factory.setNamespaceAware(true);
+            factory.setFeature(BFOSAXParserFactory.FEATURE_THREADS, (mode & 1) != 0);
+            factory.setFeature(BFOSAXParserFactory.FEATURE_LAZY_ATTRIBUTE_VALUES, (mode & 2) != 0);
+            factories.add(factory);
+        }
+
+        for (boolean ns : new boolean[] { false, true }) {
+            // Each width alone, then each after every other, so the same object is
+            // reused for narrower and wider elements
+            StringBuilder sb = new StringBuilder("<root>");
+            for (int width : WIDTHS) {
+                compare(element("e", width, ns), jdk, factories, "width " + width);
+                for (int other : WIDTHS) {
+                    sb.append(element("w" + width, width, ns)).append(element("n" + other, other, ns));
+                }
+            }
+            compare(sb.append("</root>").toString(), jdk, factories, "reused");
+
+            // A duplicate qName at each position
+            for (int width : WIDTHS) {
+                for (int dup=1;dup<width;dup++) {
+                    String e = element("e", width, ns);
+                    int i = e.indexOf(" a" + dup + "=");
+                    if (i > 0) {
+                        compare(e.substring(0, i) + " a0" + e.substring(e.indexOf('=', i)), jdk, factories, "width " + width + " duplicate qName at " + dup);
+                    }
+                }
+            }
+        }
+
+        // A duplicate URI and localName, with different prefixes, at each position
+        for (int width : WIDTHS) {
+            for (int dup=0;dup<=width;dup++) {
+                StringBuilder sb = new StringBuilder("<e xmlns:p=\"urn:p\" xmlns:q=\"urn:p\"");
+                for (int i=0;i<width;i++) {
+                    sb.append(" p:a").append(i).append("=\"v\"");
+                    if (i == dup) {
+                        sb.append(" q:a0=\"v\"");
+                    }
+                }
+                compare(sb.append("/>").toString(), jdk, factories, "width " + width + " duplicate URI and localName at " + dup);
+            }
+        }
+
+        System.out.println("BFOAttributesTest: " + count + " passed");
+    }
+
+}
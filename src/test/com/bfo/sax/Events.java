@@ -0,0 +1,201 @@
+package com.bfo.sax;
+
+import java.io.*;
+import javax.xml.parsers.*;
+import javax.xml.stream.*;
+import javax.xml.stream.events.*;
+import org.xml.sax.*;
+import org.xml.sax.ext.*;
+import org.xml.sax.helpers.*;
+
+/**
+ * Records the events from a SAX parse, an XMLStreamReader or an XMLEventReader
+ * as a String, one event per line, for the feature tests to compare. Adjacent
+ * text is merged, as parsers may split it anywhere.
+ */
+class Events extends DefaultHandler implements LexicalHandler {
+
+    private final StringBuilder sb = new StringBuilder();
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * Parse the InputSource with a new parser from the factory and return its events
+     */
+    static String parse(SAXParserFactory factory, InputSource in) throws SAXException, IOException, ParserConfigurationException {
+        return parse(factory.newSAXParser().getXMLReader(), in);
+    }
+
+    /**
+     * Parse the InputSource with the XMLReader and return its events
+     */
+    static String parse(XMLReader reader, InputSource in) throws SAXException, IOException {
+        Events events = new Events();
+        reader.setContentHandler(events);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", events);
+        reader.parse(in);
+        return events.toString();
+    }
+
+    /**
+     * Read all the events from the XMLStreamReader and return them
+     */
+    static String read(XMLStreamReader r) throws XMLStreamException {
+        Events events = new Events();
+        for (int type=r.getEventType();;type=r.next()) {
+            switch (type) {
+                case XMLStreamConstants.START_ELEMENT:
+                    for (int i=0;i<r.getNamespaceCount();i++) {
+                        events.line("P", r.getNamespacePrefix(i), r.getNamespaceURI(i));
+                    }
+                    events.start(r.getNamespaceURI(), r.getLocalName(), r.getPrefix());
+                    for (int i=0;i<r.getAttributeCount();i++) {
+                        events.att(r.getAttributeNamespace(i), r.getAttributeLocalName(i), r.getAttributePrefix(i), r.getAttributeType(i), r.getAttributeValue(i));
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    events.line("E", r.getNamespaceURI(), r.getLocalName(), r.getPrefix());
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    events.text.append(r.getTextCharacters(), r.getTextStart(), r.getTextLength());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    events.line("C", r.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    events.line("PI", r.getPITarget(), r.getPIData());
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    events.line("END");
+                    r.close();
+                    return events.toString();
+            }
+        }
+    }
+
+    /**
+     * Read all the events from the XMLEventReader and return them
+     */
+    static String read(XMLEventReader r) throws XMLStreamException {
+        Events events = new Events();
+        while (r.hasNext()) {
+            XMLEvent e = r.nextEvent();
+            if (e.isStartElement()) {
+                StartElement s = e.asStartElement();
+                for (java.util.Iterator<?> i = s.getNamespaces();i.hasNext();) {
+                    Namespace ns = (Namespace)i.next();
+                    events.line("P", ns.getPrefix(), ns.getNamespaceURI());
+                }
+                events.start(s.getName().getNamespaceURI(), s.getName().getLocalPart(), s.getName().getPrefix());
+                for (java.util.Iterator<?> i = s.getAttributes();i.hasNext();) {
+                    javax.xml.stream.events.Attribute a = (javax.xml.stream.events.Attribute)i.next();
+                    events.att(a.getName().getNamespaceURI(), a.getName().getLocalPart(), a.getName().getPrefix(), a.getDTDType(), a.getValue());
+                }
+            } else if (e.isEndElement()) {
+                EndElement s = e.asEndElement();
+                events.line("E", s.getName().getNamespaceURI(), s.getName().getLocalPart(), s.getName().getPrefix());
+            } else if (e.isCharacters()) {
+                events.text.append(e.asCharacters().getData());
+            } else if (e.getEventType() == XMLStreamConstants.COMMENT) {
+                events.line("C", ((Comment)e).getText());
+            } else if (e.isProcessingInstruction()) {
+                events.line("PI", ((ProcessingInstruction)e).getTarget(), ((ProcessingInstruction)e).getData());
+            } else if (e.isEndDocument()) {
+                events.line("END");
+            }
+        }
+        r.close();
+        return events.toString();
+    }
+
+    private void line(String type, String... values) {
+        if (text.length() > 0) {
+            sb.append("T ").append(text).append('\n');
+            text.setLength(0);
+        }
+        sb.append(type);
+        for (String s : values) {
+            sb.append(' ').append(s == null ? "" : s);
+        }
+        sb.append('\n');
+    }
+
+    private void start(String uri, String localName, String prefix) {
+        line("S", uri, localName, prefix);
+    }
+
+    private void att(String uri, String localName, String prefix, String type, String value) {
+        line("A", uri, localName, prefix, type, value);
+    }
+
+    private static String prefix(String qName) {
+        int i = qName.indexOf(':');
+        return i < 0 ? "" : qName.substring(0, i);
+    }
+
+    @Override public void startPrefixMapping(String prefix, String uri) {
+        line("P", prefix, uri);
+    }
+    @Override public void startElement(String uri, String localName, String qName, Attributes atts) {
+        start(uri, localName, prefix(qName));
+        for (int i=0;i<atts.getLength();i++) {
+            att(atts.getURI(i), atts.getLocalName(i), prefix(atts.getQName(i)), atts.getType(i), atts.getValue(i));
+        }
+    }
+    @Override public void endElement(String uri, String localName, String qName) {
+        line("E", uri, localName, prefix(qName));
+    }
+    @Override public void characters(char[] buf, int off, int len) {
+        text.append(buf, off, len);
+    }
+    @Override public void ignorableWhitespace(char[] buf, int off, int len) {
+        text.append(buf, off, len);
+    }
+    @Override public void processingInstruction(String target, String data) {
+        line("PI", target, data);
+    }
+    @Override public void endDocument() {
+        line("END");
+    }
+    @Override public void comment(char[] buf, int off, int len) {
+        line("C", new String(buf, off, len));
+    }
+    @Override public void startCDATA() {
+    }
+    @Override public void endCDATA() {
+    }
+    @Override public void startDTD(String name, String publicId, String systemId) {
+    }
+    @Override public void endDTD() {
+    }
+    @Override public void startEntity(String name) {
+    }
+    @Override public void endEntity(String name) {
+    }
+
+    @Override public String toString() {
+        return sb.toString();
+    }
+
+    /**
+     * Throw an Exception describing the first difference between two
+     * lists of events, if they differ
+     */
+    static void compare(String expected, String actual, String desc) {
+        if (!expected.equals(actual)) {
+            String[] e = expected.split("\n", -1), a = actual.split("\n", -1);
+            int i = 0;
+            while (i < e.length && i < a.length && e[i].equals(a[i])) {
+                i++;
+            }
+            String es = i < e.length ? e[i] : "(end)", as = i < a.length ? a[i] : "(end)";
+            throw new IllegalStateException(desc + ": event " + i + " differs: expected \"" + clip(es) + "\", got \"" + clip(as) + "\"");
+        }
+    }
+
+    private static String clip(String s) {
+        return s.length() > 200 ? s.substring(0, 200) + "..." : s;
+    }
+
+}
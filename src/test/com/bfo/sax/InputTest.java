@@ -0,0 +1,222 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+import javax.xml.parsers.*;
+import javax.xml.stream.*;
+import org.xml.sax.*;
+
+/**
+ * Parse the same document through each way of giving input to the parser -
+ * streams, channels, buffers, arrays, files and gzip-compressed input - in
+ * each of the charsets decoded natively, and check the events are the same
+ * as those from the JDK's parser.
+ */
+public class InputTest {
+
+    private static final String[] CHARSETS = {
+        "UTF-8", "UTF-16", "UTF-16BE", "UTF-16LE", "US-ASCII", "ISO-8859-1", "ISO-8859-2",
+        "ISO-8859-5", "windows-1252", "KOI8-R", "Shift_JIS", "windows-31j", "EUC-JP"
+    };
+    // Text in each charset is made from these, where they can be encoded
+    private static final String SAMPLE = "café üß łą привет € あア漢字 ｱ 𝄞";
+    private static final String LOREM = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore.";
+    private static final int[] BUFSIZES = { 0, 16, 17 };
+
+    private static int count;
+
+    /**
+     * Return the test document for the charset, with text made from what
+     * it can encode. With 600 items it's long enough to need several reads
+     * with the default buffers, and to be mapped when read from a file
+     */
+    static String document(String charset, int items) {
+        CharsetEncoder encoder = Charset.forName(charset).newEncoder();
+        StringBuilder sample = new StringBuilder();
+        for (int i=0;i<SAMPLE.length();i++) {
+            char c = SAMPLE.charAt(i);
+            if (Character.isHighSurrogate(c)) {
+                String s = SAMPLE.substring(i, i + 2);
+                if (encoder.canEncode(s)) {
+                    sample.append(s);
+                }
+                i++;
+            } else if (encoder.canEncode(c)) {
+                sample.append(c);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"" + charset + "\"?>\n");
+        sb.append("<!-- comment " + sample + " -->\n");
+        sb.append("<?pi data " + sample + "?>\n");
+        sb.append("<a:root xmlns:a=\"urn:a\" xmlns:b=\"urn:b\" at=\"" + sample + " &amp; &#x41;&#x1d11e;\">\r\n");
+        for (int i=0;i<items;i++) {
+            sb.append(" <b:item n=\"" + i + "\" b:v=\"" + sample + "\">text " + sample + " &lt; &#233;\r\nline<![CDATA[cdata " + sample + " ]]]]><![CDATA[>]]></b:item>\n");
+            // Long enough ASCII runs for the Vector API to be used on, if it's there
+            sb.append(" <p a=\"" + LOREM.substring(i % 7) + "\">" + LOREM.substring(i % 11) + (i % 3 == 0 ? "&amp;" : "") + LOREM + "</p>\n");
+            if (i % 100 == 0) {
+                sb.append(" <empty/><!--" + i + "-->\r");
+            }
+        }
+        sb.append("</a:root>\n");
+        return sb.toString();
+    }
+
+    private static byte[] encode(String s, String charset) {
+        return s.getBytes(Charset.forName(charset));
+    }
+
+    private static byte[] gzip(byte[] data, int members) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int step = (data.length + members - 1) / members;
+        for (int i=0;i<data.length;i+=step) {
+            GZIPOutputStream gz = new GZIPOutputStream(out);
+            gz.write(data, i, Math.min(step, data.length - i));
+            gz.finish();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * An InputStream returning at most n bytes from each read
+     */
+    private static InputStream trickle(byte[] data, final int n) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override public int read(byte[] buf, int off, int len) throws IOException {
+                return super.read(buf, off, Math.min(len, n));
+            }
+        };
+    }
+
+    private static ByteBuffer direct(byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * A ByteBuffer with the data between its position and limit, and other bytes either side
+     */
+    private static ByteBuffer slice(byte[] data) {
+        byte[] b = new byte[data.length + 20];
+        Arrays.fill(b, (byte)'x');
+        System.arraycopy(data, 0, b, 7, data.length);
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        buf.position(7);
+        buf.limit(7 + data.length);
+        return buf.slice();
+    }
+
+    private static void check(String expected, SAXParserFactory factory, int bufsize, InputSource in, String desc) throws Exception {
+        XMLReader reader = factory.newSAXParser().getXMLReader();
+        if (bufsize > 0) {
+            reader.setProperty("http://apache.org/xml/properties/input-buffer-size", bufsize);
+        }
+        Events.compare(expected, Events.parse(reader, in), desc + (bufsize > 0 ? " input-buffer-size=" + bufsize : ""));
+        count++;
+    }
+
+    private static void check(String expected, String actual, String desc) {
+        Events.compare(expected, actual, desc);
+        count++;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SAXParserFactory jdk = SAXParserFactory.newDefaultInstance();
+        jdk.setNamespaceAware(true);
+        BFOSAXParserFactory factory = new BFOSAXParserFactory();
+        factory.setNamespaceAware(true);
+        BFOSAXParserFactory gzfactory = new BFOSAXParserFactory();
+        gzfactory.setNamespaceAware(true);
+        gzfactory.setFeature(BFOSAXParserFactory.FEATURE_GZIP, true);
+        File tmp = File.createTempFile("bfosax", ".xml");
+        tmp.deleteOnExit();
+
+        for (String charset : CHARSETS) {
+            final String doc = document(charset, 600);
+            final byte[] data = encode(doc, charset);
+            final String expected = Events.parse(jdk, new InputSource(new StringReader(doc)));
+            for (int bufsize : BUFSIZES) {
+                check(expected, factory, bufsize, new InputSource(new ByteArrayInputStream(data)), charset + " InputStream");
+                check(expected, factory, bufsize, new InputSource(trickle(data, 3)), charset + " InputStream in 3 byte reads");
+                check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(ByteBuffer.wrap(data)), charset + " ByteBuffer");
+                check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(slice(data)), charset + " ByteBuffer slice");
+                check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(direct(data)), charset + " direct ByteBuffer");
+                byte[] padded = new byte[data.length + 10];
+                System.arraycopy(data, 0, padded, 5, data.length);
+                check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(padded, 5, data.length), charset + " byte[]");
+                check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(Channels.newChannel(new ByteArrayInputStream(data))), charset + " ReadableByteChannel");
+                check(expected, gzfactory, bufsize, new InputSource(new ByteArrayInputStream(gzip(data, 1))), charset + " gzip InputStream");
+                check(expected, gzfactory, bufsize, new InputSource(trickle(gzip(data, 3), 5)), charset + " gzip InputStream of 3 members");
+                check(expected, gzfactory, bufsize, BFOSAXParserFactory.createInputSource(ByteBuffer.wrap(gzip(data, 1))), charset + " gzip ByteBuffer");
+                check(expected, gzfactory, bufsize, new InputSource(new ByteArrayInputStream(data)), charset + " InputStream with gzip on");
+            }
+            // Files are read from a FileChannel, mapped if they're large enough
+            Files.write(tmp.toPath(), data);
+            check(expected, factory, 0, new InputSource(tmp.toURI().toString()), charset + " file");
+            try (FileChannel channel = FileChannel.open(tmp.toPath())) {
+                check(expected, factory, 0, BFOSAXParserFactory.createInputSource(channel), charset + " FileChannel");
+            }
+            final String small = document(charset, 10);
+            Files.write(tmp.toPath(), encode(small, charset));
+            check(Events.parse(jdk, new InputSource(new StringReader(small))), factory, 0, new InputSource(tmp.toURI().toString()), charset + " small file");
+            Files.write(tmp.toPath(), gzip(data, 2));
+            check(expected, gzfactory, 0, new InputSource(tmp.toURI().toString()), charset + " gzip file");
+        }
+
+        // Char input, for which the encoding in the XML declaration is ignored
+        final String doc = document("UTF-8", 600);
+        final String expected = Events.parse(jdk, new InputSource(new StringReader(doc)));
+        for (int bufsize : BUFSIZES) {
+            char[] padded = new char[doc.length() + 10];
+            doc.getChars(0, doc.length(), padded, 5);
+            check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(padded, 5, doc.length()), "char[]");
+            check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(doc), "String");
+            check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(new StringBuilder(doc)), "StringBuilder");
+            check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(new StringBuffer(doc)), "StringBuffer");
+            CharBuffer cb = CharBuffer.wrap(padded);
+            cb.position(5);
+            cb.limit(5 + doc.length());
+            check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(cb), "CharBuffer");
+            if (cb.position() != 5) {
+                throw new IllegalStateException("CharBuffer position changed");
+            }
+            check(expected, factory, bufsize, BFOSAXParserFactory.createInputSource(CharBuffer.wrap(new StringBuilder(doc))), "CharBuffer without an array");
+            check(expected, factory, bufsize, new InputSource(new StringReader(doc)), "Reader");
+        }
+
+        // The StAX entry points, against the same parser reading the document as chars
+        BFOXMLInputFactory stax = new BFOXMLInputFactory();
+        for (String charset : new String[] { "UTF-8", "UTF-16", "ISO-8859-2", "Shift_JIS", "EUC-JP" }) {
+            final String sdoc = document(charset, 600);
+            final byte[] data = encode(sdoc, charset);
+            final String sexpected = Events.read(stax.createXMLStreamReader(new StringReader(sdoc)));
+            final String eexpected = Events.read(stax.createXMLEventReader(new StringReader(sdoc)));
+            check(sexpected, Events.read(stax.createXMLStreamReader(new ByteArrayInputStream(data))), charset + " XMLStreamReader InputStream");
+            check(sexpected, Events.read(stax.createXMLStreamReader(new ByteArrayInputStream(data), charset)), charset + " XMLStreamReader InputStream with encoding");
+            check(sexpected, Events.read(stax.createXMLStreamReader(ByteBuffer.wrap(data))), charset + " XMLStreamReader ByteBuffer");
+            check(sexpected, Events.read(stax.createXMLStreamReader(direct(data))), charset + " XMLStreamReader direct ByteBuffer");
+            check(sexpected, Events.read(stax.createXMLStreamReader(data, 0, data.length)), charset + " XMLStreamReader byte[]");
+            check(sexpected, Events.read(stax.createXMLStreamReader(Channels.newChannel(new ByteArrayInputStream(data)))), charset + " XMLStreamReader ReadableByteChannel");
+            check(eexpected, Events.read(stax.createXMLEventReader(ByteBuffer.wrap(data))), charset + " XMLEventReader ByteBuffer");
+            check(eexpected, Events.read(stax.createXMLEventReader(data, 0, data.length)), charset + " XMLEventReader byte[]");
+            check(eexpected, Events.read(stax.createXMLEventReader(Channels.newChannel(new ByteArrayInputStream(data)))), charset + " XMLEventReader ReadableByteChannel");
+        }
+        final String sexpected = Events.read(stax.createXMLStreamReader(new StringReader(doc)));
+        final String eexpected = Events.read(stax.createXMLEventReader(new StringReader(doc)));
+        check(sexpected, Events.read(stax.createXMLStreamReader(doc.toCharArray(), 0, doc.length())), "XMLStreamReader char[]");
+        check(sexpected, Events.read(stax.createXMLStreamReader(doc)), "XMLStreamReader CharSequence");
+        check(sexpected, Events.read(stax.createXMLStreamReader(CharBuffer.wrap(new StringBuilder(doc)))), "XMLStreamReader CharBuffer without an array");
+        check(eexpected, Events.read(stax.createXMLEventReader(doc.toCharArray(), 0, doc.length())), "XMLEventReader char[]");
+        check(eexpected, Events.read(stax.createXMLEventReader(new StringBuilder(doc))), "XMLEventReader CharSequence");
+
+        System.out.println("InputTest: " + count + " passed" + (AsciiRuns.ENABLED ? ", with the Vector API" : ""));
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.bfo.sax;
+
+import java.io.*;
+import javax.xml.parsers.*;
+import org.xml.sax.*;
+import org.xml.sax.ext.*;
+
+/**
+ * Parse a text node and a CDATA section of 100M chars each, with and without
+ * the threaded queue, and check they're passed to characters() in bounded
+ * parts. The unit target runs this with a heap too small to hold either,
+ * so it fails if the parser collects the whole of one before passing it on.
+ */
+public class LongTextTest {
+
+    private static final long LENGTH = 100000000;
+    private static final int MAXPART = 65536;   // the default for input-buffer-size that isn't set
+    private static final byte[] LINE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/\n".getBytes();
+
+    /**
+     * A stream of an element holding "length" bytes of base64-like text, in
+     * a CDATA section if requested
+     */
+    private static class TextInputStream extends InputStream {
+        final byte[] head, tail;
+        final long length;
+        long pos;
+        TextInputStream(long length, boolean cdata) {
+            this.length = length;
+            head = ("<r>" + (cdata ? "<![CDATA[" : "")).getBytes();
+            tail = ((cdata ? "]]]]>" : "") + "</r>").getBytes();
+        }
+        @Override public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override public int read(byte[] buf, int off, int len) {
+            final long total = head.length + length + tail.length;
+            if (pos == total) {
+                return -1;
+            }
+            len = (int)Math.min(len, total - pos);
+            for (int i=0;i<len;i++, pos++) {
+                if (pos < head.length) {
+                    buf[off + i] = head[(int)pos];
+                } else if (pos < head.length + length) {
+                    buf[off + i] = LINE[(int)((pos - head.length) % LINE.length)];
+                } else {
+                    buf[off + i] = tail[(int)(pos - head.length - length)];
+                }
+            }
+            return len;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = 0;
+        for (boolean threads : new boolean[] { false, true }) {
+            for (boolean cdata : new boolean[] { false, true }) {
+                final String desc = (cdata ? "CDATA" : "text") + " threads=" + threads;
+                SAXParserFactory factory = new BFOSAXParserFactory();
+                factory.setFeature(BFOSAXParserFactory.FEATURE_THREADS, threads);
+                XMLReader reader = factory.newSAXParser().getXMLReader();
+                final long[] total = new long[1];
+                DefaultHandler2 handler = new DefaultHandler2() {
+                    @Override public void characters(char[] buf, int off, int len) {
+                        if (len > MAXPART) {
+                            throw new IllegalStateException(desc + ": characters() passed " + len + " chars");
+                        }
+                        total[0] += len;
+                    }
+                };
+                reader.setContentHandler(handler);
+                reader.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+                reader.parse(new InputSource(new TextInputStream(LENGTH, cdata)));
+                // A CDATA section ends with "]]" before its "]]>"
+                final long expected = LENGTH + (cdata ? 2 : 0);
+                if (total[0] != expected) {
+                    throw new IllegalStateException(desc + ": expected " + expected + " chars, got " + total[0]);
+                }
+                count++;
+            }
+        }
+        System.out.println("LongTextTest: " + count + " passed");
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.parsers.*;
+import org.xml.sax.*;
+import org.xml.sax.ext.*;
+
+/**
+ * Check text and CDATA sections that are passed to characters() in parts,
+ * with input buffers small enough that every construct lands across the
+ * end of a part somewhere: "]]>" in content and at the end of CDATA
+ * sections, surrogate pairs, entity references and line ends. Results are
+ * compared with those from the JDK's parser.
+ */
+public class TextChunkTest {
+
+    private static final int[] BUFSIZES = { 0, 16, 17, 100 };
+    private static final String PAIR = "\ud834\udd1e";
+
+    private static int count;
+
+    /**
+     * Records how text is passed to characters(), failing if a call is empty
+     * other than for an empty CDATA section, or ends between the two halves of
+     * a surrogate pair
+     */
+    private static class Parts extends DefaultHandler2 {
+        final StringBuilder sb = new StringBuilder();
+        boolean cdata;
+        int cdataCalls, emptyCalls;
+        @Override public void startCDATA() {
+            cdata = true;
+            cdataCalls = emptyCalls = 0;
+        }
+        @Override public void endCDATA() {
+            sb.append("{").append(cdataCalls).append(emptyCalls > 0 ? " empty}" : "}");
+            cdata = false;
+        }
+        @Override public void characters(char[] buf, int off, int len) {
+            if (len == 0) {
+                emptyCalls++;
+            } else if (Character.isHighSurrogate(buf[off + len - 1])) {
+                throw new IllegalStateException("surrogate pair split");
+            }
+            if (cdata) {
+                cdataCalls++;
+            } else if (len == 0) {
+                throw new IllegalStateException("empty characters() outside CDATA");
+            }
+        }
+    }
+
+    private static List<SAXParserFactory> factories() throws Exception {
+        List<SAXParserFactory> factories = new ArrayList<SAXParserFactory>();
+        for (boolean threads : new boolean[] { false, true }) {
+            SAXParserFactory factory = new BFOSAXParserFactory();
+            factory.setNamespaceAware(true);
+            factory.setFeature(BFOSAXParserFactory.FEATURE_THREADS, threads);
+            factories.add(factory);
+        }
+        return factories;
+    }
+
+    private static String name(SAXParserFactory factory) throws Exception {
+        return "threads=" + factory.getFeature(BFOSAXParserFactory.FEATURE_THREADS);
+    }
+
+    private static XMLReader reader(SAXParserFactory factory, int bufsize) throws Exception {
+        XMLReader reader = factory.newSAXParser().getXMLReader();
+        if (bufsize > 0) {
+            reader.setProperty("http://apache.org/xml/properties/input-buffer-size", bufsize);
+        }
+        return reader;
+    }
+
+    /**
+     * Return the events from parsing the document, or "ERROR" if it's not well-formed
+     */
+    private static String parse(XMLReader reader, String doc) throws Exception {
+        reader.setErrorHandler(new DefaultHandler2());      // throw fatal errors without printing them
+        try {
+            return Events.parse(reader, new InputSource(new ByteArrayInputStream(doc.getBytes("UTF-8"))));
+        } catch (SAXParseException e) {
+            return "ERROR";
+        }
+    }
+
+    /**
+     * Return how the text in the document is passed to characters()
+     */
+    private static String parts(XMLReader reader, String doc) throws Exception {
+        Parts parts = new Parts();
+        reader.setContentHandler(parts);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", parts);
+        reader.parse(new InputSource(new StringReader(doc)));
+        return parts.sb.toString();
+    }
+
+    /**
+     * Parse the document with each factory and buffer size and compare
+     * the events with those from the JDK, then check how any text was
+     * passed to characters()
+     */
+    private static void compare(SAXParserFactory jdk, List<SAXParserFactory> factories, String doc, String desc) throws Exception {
+        String expected = parse(jdk.newSAXParser().getXMLReader(), doc);
+        for (SAXParserFactory factory : factories) {
+            for (int bufsize : BUFSIZES) {
+                final String d = desc + " with " + name(factory) + " input-buffer-size=" + bufsize;
+                Events.compare(expected, parse(reader(factory, bufsize), doc), d);
+                if (!expected.equals("ERROR")) {
+                    try {
+                        parts(reader(factory, bufsize), doc);
+                    } catch (IllegalStateException e) {
+                        throw new IllegalStateException(d + ": " + e.getMessage(), e);
+                    }
+                }
+                count++;
+            }
+        }
+    }
+
+    private static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0;i<n;i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return a random document full of text, brackets, CDATA sections, entity
+     * references and surrogate pairs. Some have a "]]>" in their content
+     */
+    private static String random(Random random, boolean bad) {
+        StringBuilder sb = new StringBuilder("<!DOCTYPE r [<!ELEMENT r (x|y)*><!ELEMENT x (#PCDATA)><!ELEMENT y (x)*><!ENTITY e 'ent&#xe9;'>]><r>");
+        for (int j=0;j<20;j++) {
+            boolean y = random.nextBoolean();
+            sb.append(y ? "<y>\n   \n  <x>" : "<x>");
+            int n = random.nextInt(300);
+            for (int i=0;i<n;i++) {
+                switch (random.nextInt(20)) {
+                    case 0: sb.append("]"); break;
+                    case 1: sb.append("]]"); break;
+                    case 2: sb.append("]a>"); break;
+                    case 3: sb.append("&e;"); break;
+                    case 4: sb.append("<![CDATA[a]b]]c]]]d]]]]>"); break;
+                    case 5: sb.append("\r\n"); break;
+                    case 6: sb.append(PAIR).append("\u4e2d"); break;
+                    case 7: sb.append("<![CDATA[").append(repeat("0123456789", random.nextInt(8))).append("]]]]>"); break;
+                    default: sb.append("abcdefghij".substring(random.nextInt(10)));
+                }
+            }
+            if (bad && j == 10) {
+                sb.append("xx]]>");
+            }
+            sb.append(y ? "</x>\n    \n</y>" : "</x>");
+        }
+        return sb.append("</r>").toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        SAXParserFactory jdk = SAXParserFactory.newDefaultInstance();
+        jdk.setNamespaceAware(true);
+        List<SAXParserFactory> factories = factories();
+
+        // "]]>", "]]" and surrogate pairs at each offset from the start of a part
+        for (int k=0;k<40;k++) {
+            String pad = repeat("a", k);
+            compare(jdk, factories, "<r>" + pad + "]]>" + pad + "</r>", "\"]]>\" in content after " + k);
+            compare(jdk, factories, "<r>" + pad + "]]" + pad + "]]a>]" + pad + "</r>", "\"]]\" in content after " + k);
+            compare(jdk, factories, "<r><![CDATA[" + pad + "]]]]>" + pad + "]" + pad + "]]></r>", "\"]]>\" in CDATA after " + k);
+            compare(jdk, factories, "<r>" + pad + repeat(PAIR, 20) + "</r>", "surrogate pairs in content after " + k);
+            compare(jdk, factories, "<r><![CDATA[" + pad + repeat(PAIR, 20) + "]]></r>", "surrogate pairs in CDATA after " + k);
+        }
+
+        // Random content, some of it not well-formed
+        Random random = new Random(25);
+        for (int i=0;i<60;i++) {
+            compare(jdk, factories, random(random, i % 10 == 9), "random document " + i);
+        }
+
+        // An empty CDATA section gives one empty characters(), and any other
+        // one none, however many parts it's passed in
+        for (SAXParserFactory factory : factories) {
+            for (int bufsize : BUFSIZES) {
+                for (int k=0;k<70;k++) {
+                    String text = repeat("c", k / 2) + (k % 2 == 0 ? "" : PAIR);
+                    String s = parts(reader(factory, bufsize), "<r>a<![CDATA[" + text + "]]>b<![CDATA[]]></r>");
+                    if (!s.matches(text.length() == 0 ? "\\{1 empty\\}\\{1 empty\\}" : "\\{[1-9][0-9]*\\}\\{1 empty\\}")) {
+                        throw new IllegalStateException(name(factory) + " input-buffer-size=" + bufsize + ": CDATA of " + text.length() + " chars gave " + s);
+                    }
+                    count++;
+                }
+            }
+        }
+        System.out.println("TextChunkTest: " + count + " passed");
+    }
+
+}
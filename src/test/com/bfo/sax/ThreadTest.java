@@ -0,0 +1,186 @@
+package com.bfo.sax;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.xml.parsers.*;
+import org.xml.sax.*;
+import org.xml.sax.helpers.*;
+
+/**
+ * Check that failures on the read-ahead and decode threads reach the
+ * caller, that neither thread is still reading the input once the
+ * parse has returned, and that together they can't deadlock a factory's
+ * ExecutorService.
+ */
+public class ThreadTest {
+
+    /**
+     * A stream which returns "doc", then on its next read either throws
+     * "failure" or waits a while and ends the input
+     */
+    private static class FailingInputStream extends InputStream {
+        final byte[] doc;
+        final Throwable failure;
+        final AtomicInteger active = new AtomicInteger();
+        int pos;
+        FailingInputStream(String doc, Throwable failure) {
+            this.doc = doc.getBytes();
+            this.failure = failure;
+        }
+        @Override public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override public int read(byte[] buf, int off, int len) throws IOException {
+            active.incrementAndGet();
+            try {
+                if (pos < doc.length) {
+                    len = Math.min(len, doc.length - pos);
+                    System.arraycopy(doc, pos, buf, off, len);
+                    pos += len;
+                    return len;
+                } else if (failure instanceof IOException) {
+                    throw (IOException)failure;
+                } else if (failure instanceof RuntimeException) {
+                    throw (RuntimeException)failure;
+                } else if (failure instanceof Error) {
+                    throw (Error)failure;
+                }
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) { }
+                return -1;
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Parse from a FailingInputStream on another thread, reading ahead if
+     * requested, and return what was thrown, failing if the parse doesn't
+     * return or the stream is still being read once it has.
+     */
+    private static Throwable parse(SAXParserFactory factory, boolean readahead, FailingInputStream in) throws Exception {
+        return parse(factory, readahead, new FailingInputStream[] { in })[0];
+    }
+
+    /**
+     * As parse, but parse from each of the streams at once
+     */
+    private static Throwable[] parse(SAXParserFactory factory, boolean readahead, final FailingInputStream[] in) throws Exception {
+        final Throwable[] out = new Throwable[in.length];
+        Thread[] threads = new Thread[in.length];
+        for (int i=0;i<in.length;i++) {
+            final int j = i;
+            final SAXParser parser = factory.newSAXParser();
+            if (readahead) {
+                parser.getXMLReader().setProperty("http://bfo.com/sax/properties/read-ahead", 2);
+            }
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        parser.parse(in[j], new DefaultHandler());
+                    } catch (Throwable e) {
+                        out[j] = e;
+                    }
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        for (int i=0;i<in.length;i++) {
+            threads[i].join(10000);
+            if (threads[i].isAlive()) {
+                throw new IllegalStateException("parse did not return");
+            }
+            if (in[i].active.get() != 0) {
+                throw new IllegalStateException("input still being read after parse returned");
+            }
+        }
+        return out;
+    }
+
+    private static boolean causedBy(Throwable e, Throwable cause) {
+        for (;e != null;e = e.getCause()) {
+            if (e == cause || (e instanceof SAXException && ((SAXException)e).getException() == cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return an ExecutorService of daemon threads
+     */
+    private static ExecutorService pool(int size) {
+        return Executors.newFixedThreadPool(size, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = 0;
+        for (int mode=0;mode<8;mode++) {
+            SAXParserFactory factory = new BFOSAXParserFactory();
+            factory.setFeature(BFOSAXParserFactory.FEATURE_THREADS, (mode & 1) != 0);
+            factory.setFeature(BFOSAXParserFactory.FEATURE_DECODE_THREAD, (mode & 2) != 0);
+            boolean readahead = (mode & 4) != 0;
+            String desc = "threads=" + ((mode & 1) != 0) + " decode-thread=" + ((mode & 2) != 0) + " read-ahead=" + readahead;
+            Throwable[] failures = { new AssertionError("test"), new IllegalStateException("test"), new IOException("test") };
+            for (Throwable failure : failures) {
+                // The document is unfinished, so the failure must be reached
+                FailingInputStream in = new FailingInputStream("<a>text<b/>", failure);
+                Throwable e = parse(factory, readahead, in);
+                if (!causedBy(e, failure)) {
+                    throw new IllegalStateException(desc + ": " + failure + " gave " + e, e);
+                }
+                count++;
+            }
+            // The document fails while the other thread is still reading
+            FailingInputStream in = new FailingInputStream("<a>text<b/>&bad;</a>", null);
+            Throwable e = parse(factory, readahead, in);
+            if (!(e instanceof SAXParseException)) {
+                throw new IllegalStateException(desc + ": expected SAXParseException, gave " + e, e);
+            }
+            count++;
+        }
+
+        // Reading ahead and decoding on a factory with an ExecutorService, when the
+        // document is long enough to fill both rings, with as many parses at once as
+        // the pool has threads. The threaded queue is off, as parsing on the pool
+        // leaves no thread for anything else
+        StringBuilder sb = new StringBuilder("<a>");
+        for (int i=0;i<100000;i++) {
+            sb.append("<b c=\"d\">text text text</b>\n");
+        }
+        final String doc = sb.append("</a>").toString();
+        for (int size=1;size<=2;size++) {
+            for (int mode=0;mode<4;mode++) {
+                SAXParserFactory factory = new BFOSAXParserFactory();
+                ((BFOSAXParserFactory)factory).setExecutorService(pool(size));
+                factory.setFeature(BFOSAXParserFactory.FEATURE_THREADS, false);
+                factory.setFeature(BFOSAXParserFactory.FEATURE_DECODE_THREAD, (mode & 1) != 0);
+                boolean readahead = (mode & 2) != 0;
+                String desc = "pool of " + size + " decode-thread=" + ((mode & 1) != 0) + " read-ahead=" + readahead;
+                FailingInputStream[] in = new FailingInputStream[size];
+                for (int i=0;i<size;i++) {
+                    in[i] = new FailingInputStream(doc, null);
+                }
+                for (Throwable e : parse(factory, readahead, in)) {
+                    if (e != null) {
+                        throw new IllegalStateException(desc + ": gave " + e, e);
+                    }
+                }
+                count++;
+            }
+        }
+        System.out.println("ThreadTest: " + count + " passed");
+    }
+
+}